@@ -0,0 +1,101 @@
+package us.vario.greg.md;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes rendered output as UTF-8 into a set of reusable direct buffers, which are written to a file channel with a
+ * single gathering write when full.
+ */
+class ChannelOutput
+        implements Appendable
+{
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int BUFFER_COUNT = 8;
+
+    private final ByteBuffer[] buffers = new ByteBuffer[BUFFER_COUNT];
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                                                                 .onMalformedInput(CodingErrorAction.REPLACE)
+                                                                 .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private FileChannel channel;
+    private int current;
+
+    ChannelOutput() {
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Start writing to a channel, reusing the buffers
+     */
+    void open(final FileChannel channel) {
+        this.channel = channel;
+        for (ByteBuffer buffer : buffers) {
+            buffer.clear();
+        }
+        current = 0;
+    }
+
+    /**
+     * Each string is encoded as complete input, since the renderer never splits surrogate pairs across strings
+     */
+    @Override
+    public Appendable append(final CharSequence csq) throws IOException {
+        CharBuffer in = CharBuffer.wrap(csq);
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(in, buffers[current], true);
+            if (result.isOverflow()) {
+                nextBuffer();
+                continue;
+            }
+            break;
+        }
+        while (encoder.flush(buffers[current]).isOverflow()) {
+            nextBuffer();
+        }
+        return this;
+    }
+
+    @Override
+    public Appendable append(final CharSequence csq, final int start, final int end) throws IOException {
+        return append(csq.subSequence(start, end));
+    }
+
+    @Override
+    public Appendable append(final char c) throws IOException {
+        return append(String.valueOf(c));
+    }
+
+    private void nextBuffer() throws IOException {
+        if (++current == buffers.length) {
+            flush();
+        }
+    }
+
+    /**
+     * Write all buffered output to the channel
+     */
+    void flush() throws IOException {
+        int count = Math.min(current + 1, buffers.length);
+        long remaining = 0;
+        for (int i = 0; i < count; i++) {
+            buffers[i].flip();
+            remaining += buffers[i].remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers, 0, count);
+        }
+        for (ByteBuffer buffer : buffers) {
+            buffer.clear();
+        }
+        current = 0;
+    }
+}
@@ -0,0 +1,1287 @@
+package us.vario.greg.md;
+
+import org.commonmark.internal.util.Html5Entities;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Streaming markdown parser, which reports blocks and inlines as events carrying offsets into the source buffer
+ * instead of building a document tree. Code lines are reported as soon as they are read, paragraphs when they end.
+ * Since whether a list is tight depends on all of its items, the blocks are scanned for loose lists before any
+ * events are reported.
+ * <p>
+ * Supports a subset of CommonMark: block quotes, lists, ATX and setext headings, fenced and indented code, html
+ * blocks, thematic breaks, emphasis, code spans, inline links and images, {@code <url>} autolinks, and entity
+ * references in text. Link reference definitions and bare URL autolinks are rendered as text, and link destinations
+ * and titles are reported as written.
+ */
+class EventParser {
+    /**
+     * Nesting limit of parentheses in a link destination, as in commonmark.js
+     */
+    static final int MAX_LINK_PARENS = 32;
+
+    enum Kind {
+        BLOCK_QUOTE,
+        /**
+         * arg1: marker char
+         */
+        BULLET_LIST,
+        /**
+         * arg1: start number, arg2: delimiter char
+         */
+        ORDERED_LIST,
+        LIST_ITEM,
+        /**
+         * arg1: 1 if in an item of a tight list
+         */
+        PARAGRAPH,
+        /**
+         * arg1: level
+         */
+        HEADING,
+        /**
+         * arg1: fence char, arg2: fence length. Each text event is one line.
+         */
+        FENCED_CODE,
+        /**
+         * Each text event is one line
+         */
+        INDENTED_CODE,
+        /**
+         * Each text event is one line
+         */
+        HTML_BLOCK,
+        THEMATIC_BREAK,
+        /**
+         * arg1: delimiter char
+         */
+        EMPHASIS,
+        /**
+         * arg1: delimiter char
+         */
+        STRONG,
+        CODE,
+        /**
+         * The destination event is reported before exit
+         */
+        LINK,
+        /**
+         * The destination event is reported before exit
+         */
+        IMAGE,
+        SOFT_BREAK,
+        HARD_BREAK,
+        /**
+         * arg1, arg2: source offsets of an entity or numeric character reference, known to
+         * {@link Html5Entities#entityToString(String)}. That class is internal to commonmark, which build.gradle pins to
+         * an exact version for it.
+         */
+        ENTITY
+    }
+
+    /**
+     * Ignores events while scanning for loose lists
+     */
+    private static final Handler IGNORE = new Handler() {
+        @Override
+        public void enter(final Kind kind, final int arg1, final int arg2) {
+        }
+
+        @Override
+        public void exit(final Kind kind) {
+        }
+
+        @Override
+        public void text(final int start, final int end) {
+        }
+
+        @Override
+        public void destination(final int start, final int end, final int titleStart, final int titleEnd) {
+        }
+    };
+
+    /**
+     * Receives parse events. Offsets are into the source buffer.
+     */
+    interface Handler {
+        void enter(Kind kind, int arg1, int arg2);
+
+        void exit(Kind kind);
+
+        void text(int start, int end);
+
+        /**
+         * Destination of a link or image
+         *
+         * @param titleStart title start, or -1 if there is no title
+         */
+        void destination(int start, int end, int titleStart, int titleEnd);
+    }
+
+    private final char[] buf;
+    private final int length;
+    private final Handler handler;
+    /**
+     * True while scanning for loose lists, when no events are reported
+     */
+    private final boolean scanning;
+    private final List<Container> stack = new ArrayList<>();
+    /**
+     * Loose lists by the order they are opened in
+     */
+    private BitSet looseLists = new BitSet();
+    private int listCount;
+    private boolean previousBlank;
+    /**
+     * Position of a char on the current line which is in no thematic break, or -1
+     */
+    private int noBreakAt = -1;
+
+    private Kind leaf;
+    private char fenceChar;
+    private int fenceLength;
+    private int fenceIndent;
+    private int pendingBlankLines;
+    private int[] segments = new int[32];
+    private int segmentCount;
+
+    EventParser(final char[] buf, final int length, final Handler handler) {
+        this(buf, length, handler, false);
+    }
+
+    private EventParser(final char[] buf, final int length, final Handler handler, final boolean scanning) {
+        this.buf = buf;
+        this.length = length;
+        this.handler = handler;
+        this.scanning = scanning;
+    }
+
+    /**
+     * An open block quote, list, or list item
+     */
+    private static class Container {
+        final Kind kind;
+        final char marker;
+        final int indent;
+        /**
+         * Order a list was opened in
+         */
+        int id;
+        /**
+         * Whether a list item contains a block
+         */
+        boolean hasChild;
+
+        Container(final Kind kind, final char marker, final int indent) {
+            this.kind = kind;
+            this.marker = marker;
+            this.indent = indent;
+        }
+    }
+
+    void parse() {
+        if (!scanning) {
+            EventParser scan = new EventParser(buf, length, IGNORE, true);
+            scan.parse();
+            looseLists = scan.looseLists;
+        }
+        int pos = 0;
+        while (pos < length) {
+            int eol = pos;
+            while (eol < length && buf[eol] != '\n') {
+                eol++;
+            }
+            int end = eol > pos && buf[eol - 1] == '\r' ? eol - 1 : eol;
+            line(pos, end);
+            previousBlank = isBlank(pos, end);
+            pos = eol + 1;
+        }
+        closeLeaf();
+        closeContainers(0);
+    }
+
+    private void line(final int start, final int end) {
+        int p = start;
+        int matched = 0;
+        for (; matched < stack.size(); matched++) {
+            Container container = stack.get(matched);
+            if (container.kind == Kind.BLOCK_QUOTE) {
+                int q = skipSpaces(p, end, 3);
+                if (q < end && buf[q] == '>') {
+                    p = q + 1;
+                    if (p < end && buf[p] == ' ') {
+                        p++;
+                    }
+                    continue;
+                }
+                break;
+            } else if (container.kind == Kind.LIST_ITEM) {
+                if (isBlank(p, end)) {
+                    continue;
+                }
+                if (indent(p, end) >= container.indent) {
+                    p = advance(p, end, container.indent);
+                    continue;
+                }
+                break;
+            }
+        }
+        boolean allMatched = matched == stack.size();
+        boolean blank = isBlank(p, end);
+
+        if (!allMatched) {
+            //the paragraph is not in the innermost matched container, so any block start interrupts it
+            if (leaf == Kind.PARAGRAPH && !blank && !startsBlock(p, end)) {
+                //lazy continuation
+                addSegment(p, end);
+                return;
+            }
+            closeLeaf();
+            closeContainers(matched);
+        }
+        if (leaf == Kind.FENCED_CODE) {
+            if (isClosingFence(p, end)) {
+                closeLeaf();
+            } else {
+                int q = p;
+                for (int i = 0; i < fenceIndent && q < end && buf[q] == ' '; i++) {
+                    q++;
+                }
+                handler.text(q, end);
+            }
+            return;
+        }
+        p = openContainers(p, end);
+        if (top() == Kind.BULLET_LIST || top() == Kind.ORDERED_LIST) {
+            //the list item was not continued
+            closeContainers(stack.size() - 1);
+        }
+        leafLine(p, end);
+    }
+
+    /**
+     * Open any block quotes and list items starting the line
+     *
+     * @return position after the container markers
+     */
+    private int openContainers(int p, final int end) {
+        while (p < end && indent(p, end) < 4) {
+            int q = skipSpaces(p, end, 3);
+            if (q < end && buf[q] == '>') {
+                closeLeaf();
+                closeDanglingList();
+                startBlock();
+                stack.add(new Container(Kind.BLOCK_QUOTE, '>', 0));
+                handler.enter(Kind.BLOCK_QUOTE, 0, 0);
+                p = q + 1;
+                if (p < end && buf[p] == ' ') {
+                    p++;
+                }
+                continue;
+            }
+            if (isThematicBreak(q, end)) {
+                break;
+            }
+            int markerEnd = listMarker(q, end);
+            if (markerEnd < 0 || leaf == Kind.PARAGRAPH && !canInterruptParagraph(q, markerEnd, end)) {
+                break;
+            }
+            char marker = buf[markerEnd - 1];
+            boolean ordered = Character.isDigit(buf[q]);
+            closeLeaf();
+            Container list = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+            if (null != list && (list.kind == Kind.BULLET_LIST || list.kind == Kind.ORDERED_LIST)
+                && list.marker != marker) {
+                closeContainers(stack.size() - 1);
+                list = null;
+            } else if (null != list && list.kind != Kind.BULLET_LIST && list.kind != Kind.ORDERED_LIST) {
+                list = null;
+            }
+            if (null == list) {
+                startBlock();
+                list = new Container(ordered ? Kind.ORDERED_LIST : Kind.BULLET_LIST, marker, 0);
+                list.id = listCount++;
+                stack.add(list);
+                if (ordered) {
+                    handler.enter(Kind.ORDERED_LIST, parseNumber(q, markerEnd - 1), marker);
+                } else {
+                    handler.enter(Kind.BULLET_LIST, marker, 0);
+                }
+            } else if (previousBlank) {
+                //items separated by a blank line
+                looseLists.set(list.id);
+            }
+            int spaces = 0;
+            while (markerEnd + spaces < end && buf[markerEnd + spaces] == ' ') {
+                spaces++;
+            }
+            if (spaces == 0 || spaces > 4 || markerEnd + spaces == end) {
+                spaces = Math.min(spaces, 1);
+            }
+            stack.add(new Container(Kind.LIST_ITEM, marker, markerEnd - p + Math.max(spaces, 1)));
+            handler.enter(Kind.LIST_ITEM, 0, 0);
+            p = markerEnd + spaces;
+        }
+        return p;
+    }
+
+    private void leafLine(final int p, final int end) {
+        if (isBlank(p, end)) {
+            if (leaf == Kind.PARAGRAPH || leaf == Kind.HTML_BLOCK) {
+                closeLeaf();
+            } else if (leaf == Kind.INDENTED_CODE) {
+                pendingBlankLines++;
+            }
+            return;
+        }
+        if (indent(p, end) >= 4 && leaf != Kind.PARAGRAPH) {
+            if (leaf != Kind.INDENTED_CODE) {
+                closeLeaf();
+                startBlock();
+                leaf = Kind.INDENTED_CODE;
+                handler.enter(Kind.INDENTED_CODE, 0, 0);
+            }
+            for (; pendingBlankLines > 0; pendingBlankLines--) {
+                handler.text(p, p);
+            }
+            handler.text(advance(p, end, 4), end);
+            return;
+        }
+        if (leaf == Kind.INDENTED_CODE) {
+            closeLeaf();
+        }
+        int q = skipSpaces(p, end, 3);
+        if (leaf == Kind.PARAGRAPH && isSetextUnderline(q, end)) {
+            handler.enter(Kind.HEADING, buf[q] == '=' ? 1 : 2, 0);
+            inlines();
+            handler.exit(Kind.HEADING);
+            leaf = null;
+            return;
+        }
+        int level = headingLevel(q, end);
+        if (level > 0) {
+            closeLeaf();
+            startBlock();
+            heading(q + level, end, level);
+            return;
+        }
+        if (isFence(q, end)) {
+            closeLeaf();
+            startBlock();
+            leaf = Kind.FENCED_CODE;
+            fenceChar = buf[q];
+            fenceLength = run(q, end, fenceChar);
+            fenceIndent = q - p;
+            handler.enter(Kind.FENCED_CODE, fenceChar, fenceLength);
+            return;
+        }
+        if (isThematicBreak(q, end)) {
+            closeLeaf();
+            startBlock();
+            handler.enter(Kind.THEMATIC_BREAK, 0, 0);
+            handler.exit(Kind.THEMATIC_BREAK);
+            return;
+        }
+        if (leaf == Kind.HTML_BLOCK) {
+            handler.text(p, end);
+            return;
+        }
+        if (leaf != Kind.PARAGRAPH && isHtmlStart(q, end)) {
+            closeLeaf();
+            startBlock();
+            leaf = Kind.HTML_BLOCK;
+            handler.enter(Kind.HTML_BLOCK, 0, 0);
+            handler.text(p, end);
+            return;
+        }
+        if (leaf != Kind.PARAGRAPH) {
+            closeLeaf();
+            startBlock();
+            leaf = Kind.PARAGRAPH;
+            segmentCount = 0;
+        }
+        addSegment(q, end);
+    }
+
+    private void heading(final int start, final int end, final int level) {
+        int s = start;
+        int e = end;
+        while (s < e && isSpace(buf[s])) {
+            s++;
+        }
+        while (e > s && isSpace(buf[e - 1])) {
+            e--;
+        }
+        //optional closing sequence
+        int c = e;
+        while (c > s && buf[c - 1] == '#') {
+            c--;
+        }
+        if (c == s || isSpace(buf[c - 1])) {
+            e = c;
+            while (e > s && isSpace(buf[e - 1])) {
+                e--;
+            }
+        }
+        handler.enter(Kind.HEADING, level, 0);
+        segmentCount = 0;
+        addSegment(s, e);
+        inlines();
+        handler.exit(Kind.HEADING);
+    }
+
+    private void closeLeaf() {
+        if (null == leaf) {
+            return;
+        }
+        Kind kind = leaf;
+        leaf = null;
+        pendingBlankLines = 0;
+        if (kind == Kind.PARAGRAPH) {
+            boolean tight = top() == Kind.LIST_ITEM && !looseLists.get(stack.get(stack.size() - 2).id);
+            handler.enter(Kind.PARAGRAPH, tight ? 1 : 0, 0);
+            inlines();
+            handler.exit(Kind.PARAGRAPH);
+        } else {
+            handler.exit(kind);
+        }
+    }
+
+    private void closeContainers(final int size) {
+        while (stack.size() > size) {
+            handler.exit(stack.remove(stack.size() - 1).kind);
+        }
+    }
+
+    /**
+     * Note a block starting in the innermost container. A list is loose if an item contains blocks separated by a
+     * blank line.
+     */
+    private void startBlock() {
+        Container item = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+        if (null == item || item.kind != Kind.LIST_ITEM) {
+            return;
+        }
+        if (item.hasChild && previousBlank) {
+            looseLists.set(stack.get(stack.size() - 2).id);
+        }
+        item.hasChild = true;
+    }
+
+    private void closeDanglingList() {
+        if (top() == Kind.BULLET_LIST || top() == Kind.ORDERED_LIST) {
+            closeContainers(stack.size() - 1);
+        }
+    }
+
+    private Kind top() {
+        return stack.isEmpty() ? null : stack.get(stack.size() - 1).kind;
+    }
+
+    private void addSegment(int start, final int end) {
+        while (start < end && isSpace(buf[start])) {
+            start++;
+        }
+        if (segmentCount * 2 + 2 > segments.length) {
+            int[] larger = new int[segments.length * 2];
+            System.arraycopy(segments, 0, larger, 0, segments.length);
+            segments = larger;
+        }
+        segments[segmentCount * 2] = start;
+        segments[segmentCount * 2 + 1] = end;
+        segmentCount++;
+    }
+
+    private void inlines() {
+        if (segmentCount > 0 && !scanning) {
+            new Inlines(segments, segmentCount).parse();
+        }
+        segmentCount = 0;
+    }
+
+    private boolean startsBlock(final int p, final int end) {
+        if (indent(p, end) >= 4) {
+            return false;
+        }
+        int q = skipSpaces(p, end, 3);
+        if (q >= end) {
+            return false;
+        }
+        if (buf[q] == '>' || headingLevel(q, end) > 0 || isFence(q, end) || isThematicBreak(q, end)) {
+            return true;
+        }
+        int markerEnd = listMarker(q, end);
+        return markerEnd >= 0;
+    }
+
+    /**
+     * @return position after the list marker, or -1
+     */
+    private int listMarker(final int q, final int end) {
+        if (q >= end) {
+            return -1;
+        }
+        int m;
+        char c = buf[q];
+        if (c == '*' || c == '-' || c == '+') {
+            m = q + 1;
+        } else {
+            m = q;
+            while (m < end && m - q < 9 && Character.isDigit(buf[m])) {
+                m++;
+            }
+            if (m == q || m >= end || buf[m] != '.' && buf[m] != ')') {
+                return -1;
+            }
+            m++;
+        }
+        return m == end || buf[m] == ' ' || buf[m] == '\t' ? m : -1;
+    }
+
+    private boolean canInterruptParagraph(final int q, final int markerEnd, final int end) {
+        if (isBlank(markerEnd, end)) {
+            return false;
+        }
+        return !Character.isDigit(buf[q]) || parseNumber(q, markerEnd - 1) == 1;
+    }
+
+    private int parseNumber(final int start, final int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + buf[i] - '0';
+        }
+        return value;
+    }
+
+    private int headingLevel(final int q, final int end) {
+        int level = run(q, end, '#');
+        return level >= 1 && level <= 6 && (q + level == end || isSpace(buf[q + level])) ? level : 0;
+    }
+
+    private boolean isFence(final int q, final int end) {
+        if (q >= end || buf[q] != '`' && buf[q] != '~') {
+            return false;
+        }
+        int n = run(q, end, buf[q]);
+        if (n < 3) {
+            return false;
+        }
+        if (buf[q] == '`') {
+            for (int i = q + n; i < end; i++) {
+                if (buf[i] == '`') {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean isClosingFence(final int p, final int end) {
+        int q = skipSpaces(p, end, 3);
+        return run(q, end, fenceChar) >= fenceLength && isBlank(q + run(q, end, fenceChar), end);
+    }
+
+    private boolean isThematicBreak(final int q, final int end) {
+        if (q >= end || buf[q] != '*' && buf[q] != '-' && buf[q] != '_' || q <= noBreakAt && noBreakAt < end) {
+            return false;
+        }
+        char c = buf[q];
+        int count = 0;
+        for (int i = q; i < end; i++) {
+            if (buf[i] == c) {
+                count++;
+            } else if (!isSpace(buf[i])) {
+                if (buf[i] != '*' && buf[i] != '-' && buf[i] != '_') {
+                    //no later marker on the line starts a break either
+                    noBreakAt = i;
+                }
+                return false;
+            }
+        }
+        return count >= 3;
+    }
+
+    private boolean isSetextUnderline(final int q, final int end) {
+        if (q >= end || buf[q] != '=' && buf[q] != '-') {
+            return false;
+        }
+        int n = run(q, end, buf[q]);
+        return isBlank(q + n, end);
+    }
+
+    private boolean isHtmlStart(final int q, final int end) {
+        return q + 1 < end && buf[q] == '<' && (Character.isLetter(buf[q + 1]) || buf[q + 1] == '/' || buf[q + 1] == '!');
+    }
+
+    private int run(final int start, final int end, final char c) {
+        int i = start;
+        while (i < end && buf[i] == c) {
+            i++;
+        }
+        return i - start;
+    }
+
+    private int skipSpaces(final int p, final int end, final int max) {
+        int q = p;
+        while (q < end && q - p < max && buf[q] == ' ') {
+            q++;
+        }
+        return q;
+    }
+
+    /**
+     * @return indentation in columns, tabs counting as 4
+     */
+    private int indent(final int p, final int end) {
+        int columns = 0;
+        for (int i = p; i < end; i++) {
+            if (buf[i] == ' ') {
+                columns++;
+            } else if (buf[i] == '\t') {
+                columns += 4;
+            } else {
+                break;
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * @return position after the given columns of indentation
+     */
+    private int advance(int p, final int end, final int columns) {
+        int count = 0;
+        while (p < end && count < columns && (buf[p] == ' ' || buf[p] == '\t')) {
+            count += buf[p] == '\t' ? 4 : 1;
+            p++;
+        }
+        return p;
+    }
+
+    private boolean isBlank(final int p, final int end) {
+        for (int i = p; i < end; i++) {
+            if (!isSpace(buf[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSpace(final char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    /**
+     * Inline parser for the lines of a paragraph or heading. Positions are virtual offsets in the lines joined by
+     * newlines, which are mapped back to source offsets for events.
+     */
+    private class Inlines {
+        final int[] starts;
+        final int[] ends;
+        final boolean[] hardBreaks;
+        final int[] virtualStarts;
+        final int count;
+        final int virtualLength;
+        int cursor;
+
+        Inlines(final int[] segments, final int count) {
+            this.count = count;
+            this.starts = new int[count];
+            this.ends = new int[count];
+            this.hardBreaks = new boolean[count];
+            this.virtualStarts = new int[count + 1];
+            int v = 0;
+            for (int i = 0; i < count; i++) {
+                int s = segments[i * 2];
+                int e = segments[i * 2 + 1];
+                if (i < count - 1) {
+                    if (e - s >= 2 && buf[e - 1] == ' ' && buf[e - 2] == ' ') {
+                        hardBreaks[i] = true;
+                    } else if (e > s && buf[e - 1] == '\\') {
+                        hardBreaks[i] = true;
+                        e--;
+                    }
+                }
+                while (e > s && isSpace(buf[e - 1])) {
+                    e--;
+                }
+                starts[i] = s;
+                ends[i] = e;
+                virtualStarts[i] = v;
+                v += e - s + 1;
+            }
+            virtualStarts[count] = v;
+            this.virtualLength = v - 1;
+        }
+
+        void parse() {
+            parse(0, virtualLength);
+        }
+
+        private int segment(final int v) {
+            while (cursor > 0 && v < virtualStarts[cursor]) {
+                cursor--;
+            }
+            while (cursor < count - 1 && v >= virtualStarts[cursor + 1]) {
+                cursor++;
+            }
+            return cursor;
+        }
+
+        /**
+         * @return the char, with '\n' between lines
+         */
+        char charAt(final int v) {
+            int s = segment(v);
+            int offset = v - virtualStarts[s];
+            return offset < ends[s] - starts[s] ? buf[starts[s] + offset] : '\n';
+        }
+
+        /**
+         * @return the source offset of a position within a line
+         */
+        int source(final int v) {
+            int s = segment(v);
+            return starts[s] + Math.min(v - virtualStarts[s], ends[s] - starts[s]);
+        }
+
+        boolean sameLine(final int v1, final int v2) {
+            return v2 <= v1 || segment(v1) == segment(v2 - 1) && charAt(v2 - 1) != '\n';
+        }
+
+        /**
+         * Report text as source slices, and line breaks between them
+         */
+        void text(final int from, final int to) {
+            int v = from;
+            while (v < to) {
+                int s = segment(v);
+                int lineEnd = virtualStarts[s] + ends[s] - starts[s];
+                int e = Math.min(to, lineEnd);
+                if (e > v) {
+                    handler.text(source(v), starts[s] + e - virtualStarts[s]);
+                }
+                if (e == lineEnd && e < to) {
+                    Kind kind = hardBreaks[s] ? Kind.HARD_BREAK : Kind.SOFT_BREAK;
+                    handler.enter(kind, 0, 0);
+                    handler.exit(kind);
+                    e++;
+                }
+                v = e;
+            }
+        }
+
+        /**
+         * Parse a range in two passes: find code spans, links and delimiter runs, and pair the delimiter runs, then
+         * report events
+         */
+        void parse(final int from, final int to) {
+            Tokens tokens = tokens(from, to);
+            pairDelimiters(tokens);
+            int textStart = from;
+            int match = 0;
+            for (int t = 0; t < tokens.count; t++) {
+                int pos = tokens.pos[t];
+                int length = tokens.length[t];
+                Kind kind = tokens.kinds[t];
+                text(textStart, pos);
+                if (null == kind) {
+                    //escaping backslash
+                    textStart = pos + 1;
+                    continue;
+                }
+                switch (kind) {
+                    case CODE:
+                        int s = pos + length;
+                        int e = tokens.a[t];
+                        textStart = e + length;
+                        if (e - s >= 2 && isWhitespace(charAt(s)) && isWhitespace(charAt(e - 1))) {
+                            s++;
+                            e--;
+                        }
+                        handler.enter(Kind.CODE, length, 0);
+                        text(s, e);
+                        handler.exit(Kind.CODE);
+                        break;
+                    case ENTITY:
+                        handler.enter(Kind.ENTITY, source(pos), source(pos + length));
+                        handler.exit(Kind.ENTITY);
+                        textStart = pos + length;
+                        break;
+                    case LINK:
+                    case IMAGE:
+                        int tail = tokens.c[t];
+                        int close = tokens.b[t];
+                        handler.enter(kind, 0, 0);
+                        if (tail < 0) {
+                            //autolink
+                            text(pos + 1, close);
+                            handler.destination(source(pos + 1), source(close), -1, -1);
+                            textStart = close + 1;
+                        } else {
+                            int[] tails = tokens.tails;
+                            parse(tokens.a[t] + 1, close);
+                            handler.destination(
+                                    source(tails[tail]),
+                                    source(tails[tail + 1]),
+                                    tails[tail + 2] >= 0 ? source(tails[tail + 2]) : -1,
+                                    tails[tail + 2] >= 0 ? source(tails[tail + 3]) : -1
+                            );
+                            textStart = tails[tail + 4];
+                        }
+                        handler.exit(kind);
+                        break;
+                    default:
+                        //delimiter run: closers use its first chars, openers its last chars
+                        int closed = 0;
+                        for (; match < tokens.matchCount && tokens.matchClosers[match] == t; match++) {
+                            handler.exit(tokens.matchSizes[match] == 2 ? Kind.STRONG : Kind.EMPHASIS);
+                            closed += tokens.matchSizes[match];
+                        }
+                        int opened = length - tokens.a[t] - closed;
+                        text(pos + closed, pos + length - opened);
+                        //the last pairing is the innermost
+                        for (int m = tokens.c[t]; m >= 0; m = tokens.matchPrevious[m]) {
+                            handler.enter(tokens.matchSizes[m] == 2 ? Kind.STRONG : Kind.EMPHASIS,
+                                          tokens.b[t] & Tokens.CHAR, 0);
+                        }
+                        textStart = pos + length;
+                        break;
+                }
+            }
+            text(textStart, to);
+        }
+
+        /**
+         * Find escapes, code spans, links, entities and delimiter runs
+         */
+        private Tokens tokens(final int from, final int to) {
+            Tokens tokens = new Tokens();
+            long failedTicks = 0;
+            int[] brackets = null;
+            int i = from;
+            while (i < to) {
+                char c = charAt(i);
+                if (c == '\\' && i + 1 < to && isPunctuation(charAt(i + 1))) {
+                    tokens.add(null, i, 1, 0, 0, 0);
+                    i += 2;
+                } else if (c == '`') {
+                    int n = run(i, to, '`');
+                    int close = n < 64 && (failedTicks & 1L << n) != 0 ? -1 : findTicks(i + n, to, n);
+                    if (close >= 0) {
+                        tokens.add(Kind.CODE, i, n, close, 0, 0);
+                        i = close + n;
+                    } else {
+                        if (n < 64) {
+                            failedTicks |= 1L << n;
+                        }
+                        i += n;
+                    }
+                } else if (c == '[' || c == '!' && i + 1 < to && charAt(i + 1) == '[') {
+                    int open = c == '!' ? i + 1 : i;
+                    if (null == brackets) {
+                        brackets = matchBrackets(from, to);
+                    }
+                    int close = brackets[open - from];
+                    int[] tail = close > 0 ? linkTail(close + 1, to) : null;
+                    if (null != tail) {
+                        tokens.add(c == '!' ? Kind.IMAGE : Kind.LINK, i, 0, open, close, tokens.addTail(tail));
+                        i = tail[4];
+                    } else {
+                        i = open + 1;
+                    }
+                } else if (c == '&') {
+                    int end = entity(i, to);
+                    if (end > 0) {
+                        tokens.add(Kind.ENTITY, i, end - i, 0, 0, 0);
+                        i = end;
+                    } else {
+                        i++;
+                    }
+                } else if (c == '<') {
+                    int close = autolink(i + 1, to);
+                    if (close > 0) {
+                        tokens.add(Kind.LINK, i, 0, 0, close, -1);
+                        i = close + 1;
+                    } else {
+                        i++;
+                    }
+                } else if (c == '*' || c == '_') {
+                    int n = run(i, to, c);
+                    char before = i > from ? charAt(i - 1) : '\n';
+                    char after = i + n < to ? charAt(i + n) : '\n';
+                    boolean left = !isWhitespace(after)
+                                   && (!isPunctuation(after) || isWhitespace(before) || isPunctuation(before));
+                    boolean right = !isWhitespace(before)
+                                    && (!isPunctuation(before) || isWhitespace(after) || isPunctuation(after));
+                    boolean canOpen = c == '*' ? left : left && (!right || isPunctuation(before));
+                    boolean canClose = c == '*' ? right : right && (!left || isPunctuation(after));
+                    if (canOpen || canClose) {
+                        int flags = c | (canOpen ? Tokens.CAN_OPEN : 0) | (canClose ? Tokens.CAN_CLOSE : 0);
+                        tokens.add(Kind.EMPHASIS, i, n, n, flags, -1);
+                    }
+                    i += n;
+                } else {
+                    i++;
+                }
+            }
+            return tokens;
+        }
+
+        /**
+         * Pair each closing delimiter run with the nearest opening run, as in the CommonMark delimiter stack
+         */
+        private void pairDelimiters(final Tokens tokens) {
+            int[] openers = new int[16];
+            int openerCount = 0;
+            //lowest opener index to search, by char, closer length mod 3, and whether the closer can open
+            int[] bottom = new int[12];
+            for (int t = 0; t < tokens.count; t++) {
+                if (tokens.kinds[t] != Kind.EMPHASIS) {
+                    continue;
+                }
+                int flags = tokens.b[t];
+                int length = tokens.length[t];
+                boolean canOpen = (flags & Tokens.CAN_OPEN) != 0;
+                int bottomIndex = ((flags & Tokens.CHAR) == '*' ? 0 : 6) + length % 3 * 2 + (canOpen ? 1 : 0);
+                while ((flags & Tokens.CAN_CLOSE) != 0 && tokens.a[t] > 0) {
+                    int found = -1;
+                    for (int j = openerCount - 1; j >= bottom[bottomIndex]; j--) {
+                        int opener = openers[j];
+                        int openerFlags = tokens.b[opener];
+                        int openerLength = tokens.length[opener];
+                        boolean oddMatch = ((openerFlags & Tokens.CAN_CLOSE) != 0 || canOpen)
+                                           && (openerLength + length) % 3 == 0
+                                           && (openerLength % 3 != 0 || length % 3 != 0);
+                        if ((openerFlags & Tokens.CHAR) == (flags & Tokens.CHAR) && !oddMatch) {
+                            found = j;
+                            break;
+                        }
+                    }
+                    if (found < 0) {
+                        bottom[bottomIndex] = openerCount;
+                        break;
+                    }
+                    int opener = openers[found];
+                    tokens.pair(opener, t, tokens.a[opener] >= 2 && tokens.a[t] >= 2 ? 2 : 1);
+                    //unmatched openers within the pair stay literal
+                    openerCount = tokens.a[opener] == 0 ? found : found + 1;
+                    for (int b = 0; b < bottom.length; b++) {
+                        bottom[b] = Math.min(bottom[b], openerCount);
+                    }
+                }
+                if (canOpen && tokens.a[t] > 0) {
+                    if (openerCount == openers.length) {
+                        openers = Arrays.copyOf(openers, openerCount * 2);
+                    }
+                    openers[openerCount++] = t;
+                }
+            }
+        }
+
+        private int run(final int start, final int to, final char c) {
+            int i = start;
+            while (i < to && charAt(i) == c) {
+                i++;
+            }
+            return i - start;
+        }
+
+        private int findTicks(final int from, final int to, final int n) {
+            int i = from;
+            while (i < to) {
+                if (charAt(i) == '`') {
+                    int m = run(i, to, '`');
+                    if (m == n) {
+                        return i;
+                    }
+                    i += m;
+                } else {
+                    i++;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Match brackets in a single pass
+         *
+         * @return for each position of a '[', the position of its matching ']', otherwise 0
+         */
+        private int[] matchBrackets(final int from, final int to) {
+            int[] matches = new int[to - from];
+            int[] open = new int[16];
+            int depth = 0;
+            for (int i = from; i < to; i++) {
+                char c = charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (c == '[') {
+                    if (depth == open.length) {
+                        int[] larger = new int[depth * 2];
+                        System.arraycopy(open, 0, larger, 0, depth);
+                        open = larger;
+                    }
+                    open[depth++] = i;
+                } else if (c == ']' && depth > 0) {
+                    matches[open[--depth] - from] = i;
+                }
+            }
+            return matches;
+        }
+
+        /**
+         * Parse {@code (dest "title")}. Each scan stops where no later tail could continue it either, at a '<' within
+         * {@code <dest>}, a newline or '(' within a title, or too deeply nested parentheses, so a line of unclosed tails
+         * is parsed in linear time.
+         *
+         * @return [destStart, destEnd, titleStart or -1, titleEnd, end], or null if not valid
+         */
+        private int[] linkTail(final int start, final int to) {
+            if (start >= to || charAt(start) != '(') {
+                return null;
+            }
+            int i = skipWhitespace(start + 1, to);
+            int destStart;
+            int destEnd;
+            if (i < to && charAt(i) == '<') {
+                destStart = ++i;
+                while (i < to && charAt(i) != '>' && charAt(i) != '<' && charAt(i) != '\n') {
+                    i += charAt(i) == '\\' ? 2 : 1;
+                }
+                if (i >= to || charAt(i) != '>') {
+                    return null;
+                }
+                destEnd = i++;
+            } else {
+                destStart = i;
+                int parens = 0;
+                while (i < to && !isWhitespace(charAt(i))) {
+                    char c = charAt(i);
+                    if (c == '\\') {
+                        i++;
+                    } else if (c == '(') {
+                        if (++parens > MAX_LINK_PARENS) {
+                            return null;
+                        }
+                    } else if (c == ')') {
+                        if (parens == 0) {
+                            break;
+                        }
+                        parens--;
+                    }
+                    i++;
+                }
+                destEnd = Math.min(i, to);
+            }
+            i = skipWhitespace(i, to);
+            int titleStart = -1;
+            int titleEnd = -1;
+            if (i < to && (charAt(i) == '"' || charAt(i) == '\'' || charAt(i) == '(')) {
+                char close = charAt(i) == '(' ? ')' : charAt(i);
+                titleStart = i + 1;
+                i++;
+                while (i < to && charAt(i) != close && charAt(i) != '\n' && !(close == ')' && charAt(i) == '(')) {
+                    i += charAt(i) == '\\' ? 2 : 1;
+                }
+                if (i >= to || charAt(i) != close) {
+                    return null;
+                }
+                titleEnd = i++;
+                i = skipWhitespace(i, to);
+            }
+            if (i >= to || charAt(i) != ')'
+                || !sameLine(destStart, destEnd)
+                || titleStart >= 0 && !sameLine(titleStart, titleEnd)) {
+                return null;
+            }
+            return new int[]{destStart, destEnd, titleStart, titleEnd, i + 1};
+        }
+
+        /**
+         * @return position after a known entity or a numeric character reference, or -1
+         */
+        private int entity(final int start, final int to) {
+            int i = start + 1;
+            boolean numeric = i < to && charAt(i) == '#';
+            if (numeric) {
+                i++;
+                boolean hex = i < to && (charAt(i) == 'x' || charAt(i) == 'X');
+                if (hex) {
+                    i++;
+                }
+                int digits = i;
+                while (i < to && i - digits < (hex ? 6 : 7) && isDigit(charAt(i), hex)) {
+                    i++;
+                }
+                if (i == digits) {
+                    return -1;
+                }
+            } else {
+                int name = i;
+                while (i < to && i - name < 32 && (isDigit(charAt(i), false) || isLetter(charAt(i)))) {
+                    i++;
+                }
+                if (i == name || !isLetter(charAt(name))) {
+                    return -1;
+                }
+            }
+            if (i >= to || charAt(i) != ';') {
+                return -1;
+            }
+            i++;
+            if (numeric) {
+                return i;
+            }
+            String entity = new String(buf, source(start), i - start);
+            return Html5Entities.entityToString(entity).equals(entity) ? -1 : i;
+        }
+
+        /**
+         * @return position of the closing '>' of a URL or email autolink, or -1
+         */
+        private int autolink(final int start, final int to) {
+            int i = start;
+            boolean colon = false;
+            boolean at = false;
+            while (i < to) {
+                char c = charAt(i);
+                if (c == '>') {
+                    break;
+                }
+                if (isWhitespace(c) || c == '<') {
+                    return -1;
+                }
+                if (c == ':' && i > start + 1) {
+                    colon = true;
+                }
+                if (c == '@' && i > start) {
+                    at = true;
+                }
+                i++;
+            }
+            if (i >= to || !colon && !at || !Character.isLetter(charAt(start))) {
+                return -1;
+            }
+            return i;
+        }
+
+        private int skipWhitespace(int i, final int to) {
+            while (i < to && isWhitespace(charAt(i))) {
+                i++;
+            }
+            return i;
+        }
+
+        private boolean isWhitespace(final char c) {
+            return c == ' ' || c == '\t' || c == '\n';
+        }
+
+        private boolean isPunctuation(final char c) {
+            return c < 128 && c > 32 && !Character.isLetterOrDigit(c);
+        }
+
+        private boolean isLetter(final char c) {
+            return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+        }
+
+        private boolean isDigit(final char c, final boolean hex) {
+            return c >= '0' && c <= '9' || hex && (c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F');
+        }
+    }
+
+    /**
+     * Code spans, links, entities, emphasis delimiter runs and escapes (with no kind) found in the first inline pass,
+     * and the pairings of delimiter runs, as parallel arrays so a long paragraph needs a few ints per token
+     */
+    private static class Tokens {
+        static final int CHAR = 0xffff;
+        static final int CAN_OPEN = 1 << 16;
+        static final int CAN_CLOSE = 1 << 17;
+
+        Kind[] kinds = new Kind[16];
+        int[] pos = new int[16];
+        int[] length = new int[16];
+        /**
+         * Code span: closing backticks. Link: opening bracket. Delimiter run: delimiters not yet paired.
+         */
+        int[] a = new int[16];
+        /**
+         * Link: closing bracket or '>'. Delimiter run: char and CAN_OPEN and CAN_CLOSE flags.
+         */
+        int[] b = new int[16];
+        /**
+         * Link: offset in tails, or -1 for an autolink. Delimiter run: its last pairing as an opener, or -1.
+         */
+        int[] c = new int[16];
+        int count;
+        /**
+         * Destinations and titles of links, 5 ints each as returned by linkTail
+         */
+        int[] tails = new int[0];
+        int tailCount;
+        /**
+         * Pairings in the order they were made, so the pairings of each closer are consecutive
+         */
+        int[] matchClosers = new int[16];
+        int[] matchSizes = new int[16];
+        /**
+         * Earlier pairing of the same opener, or -1
+         */
+        int[] matchPrevious = new int[16];
+        int matchCount;
+
+        void add(final Kind kind, final int pos, final int length, final int a, final int b, final int c) {
+            if (count == kinds.length) {
+                int size = count * 2;
+                kinds = Arrays.copyOf(kinds, size);
+                this.pos = Arrays.copyOf(this.pos, size);
+                this.length = Arrays.copyOf(this.length, size);
+                this.a = Arrays.copyOf(this.a, size);
+                this.b = Arrays.copyOf(this.b, size);
+                this.c = Arrays.copyOf(this.c, size);
+            }
+            kinds[count] = kind;
+            this.pos[count] = pos;
+            this.length[count] = length;
+            this.a[count] = a;
+            this.b[count] = b;
+            this.c[count] = c;
+            count++;
+        }
+
+        /**
+         * @return offset of the tail
+         */
+        int addTail(final int[] tail) {
+            if (tailCount + tail.length > tails.length) {
+                tails = Arrays.copyOf(tails, Math.max(16, tails.length * 2));
+            }
+            System.arraycopy(tail, 0, tails, tailCount, tail.length);
+            tailCount += tail.length;
+            return tailCount - tail.length;
+        }
+
+        /**
+         * Use k delimiters of each run for an emphasis (1) or strong emphasis (2)
+         */
+        void pair(final int opener, final int closer, final int k) {
+            if (matchCount == matchClosers.length) {
+                int size = matchCount * 2;
+                matchClosers = Arrays.copyOf(matchClosers, size);
+                matchSizes = Arrays.copyOf(matchSizes, size);
+                matchPrevious = Arrays.copyOf(matchPrevious, size);
+            }
+            matchClosers[matchCount] = closer;
+            matchSizes[matchCount] = k;
+            matchPrevious[matchCount] = c[opener];
+            c[opener] = matchCount++;
+            a[opener] -= k;
+            a[closer] -= k;
+        }
+    }
+}
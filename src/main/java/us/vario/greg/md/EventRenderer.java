@@ -0,0 +1,439 @@
+package us.vario.greg.md;
+
+import org.commonmark.internal.util.Html5Entities;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Map;
+
+/**
+ * Renders ANSI colorized text from {@link EventParser} events, writing text directly as slices of the source buffer.
+ * The output follows the tree renderer in {@link Main}.
+ */
+class EventRenderer
+        implements EventParser.Handler
+{
+    static final String UNCHECKED_ITEM_TEXT = "[ ] ";
+    static final String CHECKED_ITEM_TEXT = "[x] ";
+
+    private final char[] buf;
+    private final Writer out;
+    private final Map<String, String> colors;
+    private final Map<String, String> options;
+    private final boolean plain;
+    private final ArrayDeque<Ctx> ctxStack = new ArrayDeque<>();
+
+    private char lastChar;
+    private boolean lastLine = true;
+    private boolean tightParagraph;
+    private EventParser.Kind codeBlock;
+    private boolean codeSpan;
+    private String fence;
+
+    EventRenderer(
+            final char[] buf,
+            final Writer out,
+            final Map<String, String> colors,
+            final Map<String, String> options,
+            final boolean plain
+    )
+    {
+        this.buf = buf;
+        this.out = out;
+        this.colors = colors;
+        this.options = options;
+        this.plain = plain;
+    }
+
+    /**
+     * A container or inline style
+     */
+    private static class Ctx {
+        final EventParser.Kind kind;
+        final String textColor;
+        final char marker;
+        int olIndex;
+        int destStart;
+        int destEnd;
+        int titleStart = -1;
+        int titleEnd;
+
+        Ctx(final EventParser.Kind kind, final String textColor, final char marker) {
+            this.kind = kind;
+            this.textColor = textColor;
+            this.marker = marker;
+        }
+
+        boolean isContainer() {
+            return kind == EventParser.Kind.BLOCK_QUOTE
+                   || kind == EventParser.Kind.BULLET_LIST
+                   || kind == EventParser.Kind.ORDERED_LIST;
+        }
+    }
+
+    /**
+     * End the document
+     */
+    void finish() {
+        line();
+    }
+
+    @Override
+    public void enter(final EventParser.Kind kind, final int arg1, final int arg2) {
+        switch (kind) {
+            case BLOCK_QUOTE:
+                ctxStack.push(new Ctx(kind, getColor("blockquote"), '>'));
+                break;
+            case BULLET_LIST:
+                line();
+                ctxStack.push(new Ctx(kind, getColor("bullet"), (char) arg1));
+                break;
+            case ORDERED_LIST:
+                line();
+                Ctx list = new Ctx(kind, getColor("bullet"), (char) arg2);
+                list.olIndex = arg1;
+                ctxStack.push(list);
+                break;
+            case PARAGRAPH:
+                tightParagraph = arg1 == 1;
+                if (!tightParagraph) {
+                    line();
+                }
+                break;
+            case HEADING:
+                line();
+                String header = getColor("header");
+                ctxStack.push(new Ctx(kind, header, '#'));
+                if (!plain) {
+                    StringBuilder h = new StringBuilder();
+                    for (int i = 0; i < arg1; i++) {
+                        h.append('#');
+                    }
+                    write(h.append(' ').toString());
+                }
+                break;
+            case FENCED_CODE:
+                codeBlock = kind;
+                write(Main.Ansi.beginColor(getColor("code")));
+                StringBuilder f = new StringBuilder();
+                for (int i = 0; i < arg2; i++) {
+                    f.append((char) arg1);
+                }
+                fence = f.toString();
+                if (!plain) {
+                    write(fence);
+                    line();
+                }
+                break;
+            case INDENTED_CODE:
+                codeBlock = kind;
+                write(Main.Ansi.beginColor(getColor("code")));
+                break;
+            case HTML_BLOCK:
+                line();
+                codeBlock = kind;
+                break;
+            case THEMATIC_BREAK:
+                line();
+                write("---");
+                line();
+                break;
+            case EMPHASIS:
+            case STRONG:
+                startLine(0, 0);
+                String color = getColor(kind == EventParser.Kind.STRONG ? "strong" : "emphasis");
+                ctxStack.push(new Ctx(kind, color, (char) arg1));
+                if (!plain) {
+                    emitColorized(color, delimiter(kind, (char) arg1));
+                }
+                break;
+            case CODE:
+                startLine(0, 0);
+                codeSpan = true;
+                write(Main.Ansi.beginColor(getColor("code")));
+                if (!plain) {
+                    write("`");
+                }
+                break;
+            case LINK:
+                startLine(0, 0);
+                if (!plain) {
+                    write("[");
+                }
+                ctxStack.push(new Ctx(kind, getColor("linkText", "text"), '['));
+                break;
+            case IMAGE:
+                startLine(0, 0);
+                if (!plain) {
+                    write("![");
+                }
+                ctxStack.push(new Ctx(kind, getColor("imageText", "text"), '['));
+                break;
+            case ENTITY:
+                startLine(0, 0);
+                emitColorized(textColor(), Html5Entities.entityToString(new String(buf, arg1, arg2 - arg1)));
+                break;
+            case SOFT_BREAK:
+            case HARD_BREAK:
+                if (codeSpan) {
+                    write(" ");
+                } else {
+                    write("\n");
+                    lastLine = true;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void exit(final EventParser.Kind kind) {
+        switch (kind) {
+            case BLOCK_QUOTE:
+                ctxStack.pop();
+                break;
+            case BULLET_LIST:
+            case ORDERED_LIST:
+                ctxStack.pop();
+                write("\n");
+                break;
+            case LIST_ITEM:
+                line();
+                break;
+            case PARAGRAPH:
+                if (!tightParagraph) {
+                    write("\n\n");
+                }
+                break;
+            case HEADING:
+                write("\n\n");
+                ctxStack.pop();
+                break;
+            case FENCED_CODE:
+                line();
+                if (!plain) {
+                    write(fence);
+                }
+                write(Main.Ansi.endColor(getColor("code")));
+                codeBlock = null;
+                break;
+            case INDENTED_CODE:
+                write(Main.Ansi.endColor(getColor("code")));
+                codeBlock = null;
+                break;
+            case HTML_BLOCK:
+                line();
+                codeBlock = null;
+                break;
+            case EMPHASIS:
+            case STRONG:
+                Ctx style = ctxStack.pop();
+                if (!plain) {
+                    emitColorized(style.textColor, delimiter(kind, style.marker));
+                }
+                break;
+            case CODE:
+                if (!plain) {
+                    write("`");
+                }
+                write(Main.Ansi.endColor(getColor("code")));
+                codeSpan = false;
+                break;
+            case LINK:
+            case IMAGE:
+                Ctx link = ctxStack.pop();
+                if (!plain) {
+                    String prefix = kind == EventParser.Kind.LINK ? "link" : "image";
+                    write("](");
+                    String href = getColor(prefix + "Href", "href");
+                    write(Main.Ansi.beginColor(href));
+                    write(link.destStart, link.destEnd);
+                    write(Main.Ansi.endColor(href));
+                    if (link.titleStart >= 0) {
+                        String titleColor = getColor(prefix + "Title", "title");
+                        write(Main.Ansi.beginColor(titleColor));
+                        write(" \"");
+                        write(link.titleStart, link.titleEnd);
+                        write("\"");
+                        write(Main.Ansi.endColor(titleColor));
+                    }
+                    write(")");
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void text(int start, final int end) {
+        if (null != codeBlock) {
+            if (codeBlock == EventParser.Kind.INDENTED_CODE && !plain) {
+                write("    ");
+            }
+            write(start, end);
+            write("\n");
+            return;
+        }
+        if (codeSpan) {
+            write(start, end);
+            return;
+        }
+        start = startLine(start, end);
+        String textColor = textColor();
+        write(Main.Ansi.beginColor(textColor));
+        write(start, end);
+        write(Main.Ansi.endColor(textColor));
+    }
+
+    @Override
+    public void destination(final int start, final int end, final int titleStart, final int titleEnd) {
+        Ctx link = ctxStack.peek();
+        if (null != link) {
+            link.destStart = start;
+            link.destEnd = end;
+            link.titleStart = titleStart;
+            link.titleEnd = titleEnd;
+        }
+    }
+
+    /**
+     * Write the prefix of the innermost container if at the start of a line, before any inline content
+     *
+     * @param start start of the text, or 0 for markup
+     * @param end   end of the text, or 0 for markup
+     * @return start of the text after any task list marker
+     */
+    private int startLine(final int start, final int end) {
+        Ctx container = container();
+        boolean first = lastLine;
+        lastLine = false;
+        return first && null != container ? prefix(container, start, end) : start;
+    }
+
+    /**
+     * Write the prefix of the container at the start of a line. As in the tree renderer, each line of a list item
+     * starts with a marker.
+     *
+     * @return start of the text after any task list marker
+     */
+    private int prefix(final Ctx container, final int start, final int end) {
+        if (container.kind == EventParser.Kind.BLOCK_QUOTE) {
+            if (!plain) {
+                write("> ");
+            }
+            return start;
+        }
+        if (container.kind == EventParser.Kind.ORDERED_LIST) {
+            emitColorized(container.textColor, container.olIndex++ + ". ");
+            return start;
+        }
+        if (!plain) {
+            write(container.marker + " ");
+            return start;
+        }
+        if (startsWith(start, end, UNCHECKED_ITEM_TEXT)) {
+            emitColorized(getColor("unchecked"),
+                          options.getOrDefault("UNCHECKED_ITEM", Main.DEFAULT_UNCHECKED_ITEM) + " ");
+            return start + UNCHECKED_ITEM_TEXT.length();
+        }
+        if (startsWith(start, end, CHECKED_ITEM_TEXT)) {
+            emitColorized(getColor("checked"), options.getOrDefault("CHECKED_ITEM", Main.DEFAULT_CHECKED_ITEM) + " ");
+            return start + CHECKED_ITEM_TEXT.length();
+        }
+        write("• ");
+        return start;
+    }
+
+    private boolean startsWith(final int start, final int end, final String text) {
+        if (end - start < text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (buf[start + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return color of the innermost style, or the text color
+     */
+    private String textColor() {
+        Ctx top = ctxStack.peek();
+        return null != top && null != top.textColor ? top.textColor : getColor("text");
+    }
+
+    /**
+     * @return the innermost block quote or list
+     */
+    private Ctx container() {
+        for (Ctx ctx : ctxStack) {
+            if (ctx.isContainer()) {
+                return ctx;
+            }
+        }
+        return null;
+    }
+
+    private static String delimiter(final EventParser.Kind kind, final char c) {
+        return kind == EventParser.Kind.STRONG ? new String(new char[]{c, c}) : String.valueOf(c);
+    }
+
+    /**
+     * @return the escape sequence of the first defined style name, or null
+     */
+    private String getColor(final String... names) {
+        for (String name : names) {
+            String escape = colors.get(name.toLowerCase());
+            if (null != escape) {
+                return escape;
+            }
+        }
+        return null;
+    }
+
+    private void emitColorized(final String color, final String text) {
+        write(Main.Ansi.beginColor(color));
+        write(text);
+        write(Main.Ansi.endColor(color));
+    }
+
+    private void line() {
+        if (lastChar != 0 && lastChar != '\n') {
+            write("\n");
+        }
+        lastLine = true;
+    }
+
+    private void write(final String text) {
+        if (text.isEmpty()) {
+            return;
+        }
+        try {
+            out.write(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        lastChar = text.charAt(text.length() - 1);
+    }
+
+    /**
+     * Write a slice of the source
+     */
+    private void write(final int start, final int end) {
+        if (end <= start) {
+            return;
+        }
+        try {
+            out.write(buf, start, end - start);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        lastChar = buf[end - 1];
+    }
+}
@@ -0,0 +1,504 @@
+package us.vario.greg.md;
+
+import org.commonmark.node.*;
+import org.commonmark.parser.Parser;
+import org.commonmark.renderer.html.HtmlRenderer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.function.BiFunction;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Searches markdown files for a pattern, and renders only the blocks containing a match. The pattern is matched
+ * against the text of each block as rendered, so markup and entities in the source do not prevent a match.
+ * <p>
+ * Files are read and checked in parallel. A prefilter on the raw content skips files which cannot contain a match, so
+ * only the others are parsed. It looks for the longest literal which every match of the pattern contains, which is the
+ * whole pattern if it has no metacharacters. The prefilter allows inline markup and entities between the characters of
+ * the literal, so it never rejects a file with a match. A regex with flags, or with alternatives at its top level,
+ * has no such literal, so every file is parsed.
+ */
+class Grep {
+    static final Pattern MARKDOWN_FILE = Pattern.compile("(?i).+\\.(md|markdown|mdown|mkd)");
+    /**
+     * Inline markup chars, which may not appear in the rendered text
+     */
+    private static final String MARKUP_CHARS = "*_`\\!>[]<";
+    /**
+     * Inline markup which may be skipped between the chars of a literal: a delimiter char, a link destination or
+     * reference after ']', or an inline html tag. Each alternative is possessive, so the match does not backtrack
+     * within it.
+     */
+    private static final String SKIP_MARKUP = "(?:[*_`\\\\!>\\[]"
+                                              + "|\\](?:\\([^)]*+\\)|\\[[^\\]]*+\\])?+"
+                                              + "|<(?:(?![A-Za-z][A-Za-z0-9+.-]{1,31}:|[^<>\\s@]++@)[^<>]*+>)?+)";
+
+    private final Pattern pattern;
+    private final Parser parser;
+    private final BiFunction<Pattern, Set<Node>, HtmlRenderer> rendererFactory;
+    private final String headerColor;
+    /**
+     * UTF-8 bytes of a literal in every match, or null if none is known
+     */
+    private final byte[] literal;
+    /**
+     * Matches the literal in the raw content, allowing markup and entities, or null if none is known
+     */
+    private final Pattern relaxed;
+
+    /**
+     * @param pattern         pattern to search for
+     * @param parser          markdown parser
+     * @param rendererFactory creates a renderer given the highlight pattern and the set of blocks to render
+     * @param headerColor     color for the file names, or null
+     */
+    Grep(
+            final Pattern pattern,
+            final Parser parser,
+            final BiFunction<Pattern, Set<Node>, HtmlRenderer> rendererFactory,
+            final String headerColor
+    )
+    {
+        this.pattern = pattern;
+        this.parser = parser;
+        this.rendererFactory = rendererFactory;
+        this.headerColor = headerColor;
+        String required = pattern.flags() == 0 ? requiredLiteral(pattern.pattern()) : null;
+        this.literal = null != required ? required.getBytes(StandardCharsets.UTF_8) : null;
+        this.relaxed = null != required ? relax(required) : null;
+    }
+
+    /**
+     * Find the longest run of literal chars at the top level of the regex, which every match contains. Groups, classes,
+     * escapes of letters and digits, and chars made optional by a quantifier end a run.
+     *
+     * @return the literal, or null if the regex has alternatives or inline flags at its top level, or no literal
+     */
+    static String requiredLiteral(final String regex) {
+        String longest = "";
+        StringBuilder run = new StringBuilder();
+        int n = regex.length();
+        for (int i = 0; i < n; ) {
+            char c = regex.charAt(i);
+            String chars = null;
+            int next;
+            if (c == '\\' && i + 1 < n && regex.charAt(i + 1) == 'Q') {
+                int end = regex.indexOf("\\E", i + 2);
+                chars = regex.substring(i + 2, end < 0 ? n : end);
+                next = end < 0 ? n : end + 2;
+            } else if (c == '\\') {
+                char escaped = regex.charAt(i + 1);
+                if (Character.isLetterOrDigit(escaped)) {
+                    next = skipEscape(regex, i);
+                } else {
+                    chars = String.valueOf(escaped);
+                    next = i + 2;
+                }
+            } else if (c == '[') {
+                next = skipClass(regex, i);
+            } else if (c == '(') {
+                next = skipGroup(regex, i);
+                if (next < 0) {
+                    return null;
+                }
+            } else if (c == '|') {
+                return null;
+            } else if (".^$*+?{".indexOf(c) >= 0) {
+                next = i + 1;
+            } else {
+                chars = new String(Character.toChars(regex.codePointAt(i)));
+                next = i + chars.length();
+            }
+            //a quantifier applies to the last char
+            int q = next;
+            boolean optional = false;
+            if (q < n && (regex.charAt(q) == '?' || regex.charAt(q) == '*' || regex.charAt(q) == '+')) {
+                optional = regex.charAt(q) != '+';
+                q++;
+            } else if (q < n && regex.charAt(q) == '{') {
+                int close = regex.indexOf('}', q);
+                optional = regex.substring(q + 1, close).startsWith("0");
+                q = close + 1;
+            }
+            if (q > next && q < n && (regex.charAt(q) == '?' || regex.charAt(q) == '+')) {
+                //lazy or possessive
+                q++;
+            }
+            if (null == chars || q > next && !chars.isEmpty()) {
+                if (null != chars && !chars.isEmpty()) {
+                    int last = chars.offsetByCodePoints(chars.length(), -1);
+                    run.append(chars, 0, optional ? last : chars.length());
+                }
+                longest = run.length() > longest.length() ? run.toString() : longest;
+                run.setLength(0);
+            } else {
+                run.append(chars);
+            }
+            i = q;
+        }
+        longest = run.length() > longest.length() ? run.toString() : longest;
+        return longest.isEmpty() ? null : longest;
+    }
+
+    /**
+     * @param i offset of a backslash followed by a letter or digit
+     * @return offset after the escape
+     */
+    private static int skipEscape(final String regex, final int i) {
+        char escaped = regex.charAt(i + 1);
+        int j = i + 2;
+        if (j < regex.length() && regex.charAt(j) == '{' && "pPxNb".indexOf(escaped) >= 0
+            || j < regex.length() && regex.charAt(j) == '<' && escaped == 'k')
+        {
+            return regex.indexOf(regex.charAt(j) == '{' ? '}' : '>', j) + 1;
+        }
+        switch (escaped) {
+            case 'x':
+                return j + 2;
+            case 'u':
+                return j + 4;
+            case 'c':
+            case 'p':
+            case 'P':
+                return j + 1;
+            default:
+                //octal or a back reference
+                while (Character.isDigit(escaped) && j < regex.length() && Character.isDigit(regex.charAt(j))) {
+                    j++;
+                }
+                return j;
+        }
+    }
+
+    /**
+     * @param i offset of '['
+     * @return offset after the class
+     */
+    private static int skipClass(final String regex, final int i) {
+        int j = i + 1;
+        if (j < regex.length() && regex.charAt(j) == '^') {
+            j++;
+        }
+        if (j < regex.length() && regex.charAt(j) == ']') {
+            //a literal ']'
+            j++;
+        }
+        while (j < regex.length()) {
+            char c = regex.charAt(j);
+            if (c == '\\') {
+                j += 2;
+            } else if (c == '[') {
+                j = skipClass(regex, j);
+            } else if (c == ']') {
+                return j + 1;
+            } else {
+                j++;
+            }
+        }
+        return j;
+    }
+
+    /**
+     * @param i offset of '('
+     * @return offset after the group, or -1 if it sets inline flags
+     */
+    private static int skipGroup(final String regex, final int i) {
+        if (regex.startsWith("(?", i) && i + 2 < regex.length() && ":=!<>".indexOf(regex.charAt(i + 2)) < 0) {
+            return -1;
+        }
+        int depth = 0;
+        int j = i;
+        while (j < regex.length()) {
+            char c = regex.charAt(j);
+            if (regex.startsWith("\\Q", j)) {
+                int end = regex.indexOf("\\E", j + 2);
+                j = end < 0 ? regex.length() : end + 2;
+            } else if (c == '\\') {
+                j += 2;
+            } else if (c == '[') {
+                j = skipClass(regex, j);
+            } else {
+                if (c == '(') {
+                    depth++;
+                } else if (c == ')' && --depth == 0) {
+                    return j + 1;
+                }
+                j++;
+            }
+        }
+        return j;
+    }
+
+    /**
+     * @return a pattern matching the literal in markdown source, where each char may be written as an entity, and
+     * inline markup may appear between chars
+     */
+    static Pattern relax(final String literal) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < literal.length(); ) {
+            int c = literal.codePointAt(i);
+            if (i > 0) {
+                //a possessive skip would consume a markup char which is part of the literal
+                sb.append(SKIP_MARKUP).append(MARKUP_CHARS.indexOf(c) >= 0 ? "*" : "*+");
+            }
+            sb.append("(?:").append(Pattern.quote(new String(Character.toChars(c)))).append("|&[#A-Za-z0-9]++;)");
+            i += Character.charCount(c);
+        }
+        return Pattern.compile(sb.toString());
+    }
+
+    /**
+     * Search the files, and directories recursively for markdown files, writing the rendered matches
+     *
+     * @param paths files or directories
+     * @param out   output
+     * @return exit code: 0 if any match was found, otherwise 1
+     */
+    int search(final List<File> paths, final PrintStream out) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (File path : paths) {
+            collect(path.toPath(), files);
+        }
+        List<String> results;
+        try {
+            results = files.parallelStream().map(this::render).collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        int found = 0;
+        for (int i = 0; i < files.size(); i++) {
+            String result = results.get(i);
+            if (null == result) {
+                continue;
+            }
+            if (found > 0) {
+                out.println();
+            }
+            out.println(Main.Ansi.colorize(files.get(i).toString(), headerColor));
+            out.print(result);
+            found++;
+        }
+        return found > 0 ? 0 : 1;
+    }
+
+    /**
+     * Add the file, or the markdown files within a directory, skipping hidden directories
+     */
+    static void collect(final Path path, final List<Path> files) throws IOException {
+        if (!Files.isDirectory(path)) {
+            files.add(path);
+            return;
+        }
+        List<Path> found = new ArrayList<>();
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) {
+                if (!dir.equals(path) && dir.getFileName().toString().startsWith(".")) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && MARKDOWN_FILE.matcher(file.getFileName().toString()).matches()) {
+                    found.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(found);
+        files.addAll(found);
+    }
+
+    /**
+     * @return rendered matching blocks, or null if the file has no matches
+     */
+    private String render(final Path path) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (!mayMatch(bytes)) {
+            return null;
+        }
+        Node document = parser.parse(new String(bytes, StandardCharsets.UTF_8));
+        Set<Node> matched = Collections.newSetFromMap(new IdentityHashMap<>());
+        document.accept(new MatchFinder(matched));
+        if (matched.isEmpty()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        rendererFactory.apply(pattern, matched).render(document, sb);
+        return sb.toString();
+    }
+
+    /**
+     * @return false if the raw file content cannot contain a match
+     */
+    boolean mayMatch(final byte[] bytes) {
+        if (null == literal) {
+            return true;
+        }
+        if (indexOf(bytes, literal) >= 0) {
+            return true;
+        }
+        if (isAscii(bytes)) {
+            return relaxed.matcher(new AsciiChars(bytes)).find();
+        }
+        return relaxed.matcher(new String(bytes, StandardCharsets.UTF_8)).find();
+    }
+
+    static int indexOf(final byte[] bytes, final byte[] find) {
+        if (find.length == 0) {
+            return 0;
+        }
+        byte first = find[0];
+        int max = bytes.length - find.length;
+        for (int i = 0; i <= max; i++) {
+            if (bytes[i] != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < find.length && bytes[i + j] == find[j]) {
+                j++;
+            }
+            if (j == find.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isAscii(final byte[] bytes) {
+        for (byte b : bytes) {
+            if (b < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Char view of ASCII bytes, avoids decoding the file
+     */
+    private static class AsciiChars
+            implements CharSequence
+    {
+        final byte[] bytes;
+        final int start;
+        final int end;
+
+        AsciiChars(final byte[] bytes) {
+            this(bytes, 0, bytes.length);
+        }
+
+        AsciiChars(final byte[] bytes, final int start, final int end) {
+            this.bytes = bytes;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(final int index) {
+            return (char) bytes[start + index];
+        }
+
+        @Override
+        public CharSequence subSequence(final int start, final int end) {
+            return new AsciiChars(bytes, this.start + start, this.start + end);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, start, end - start, StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Finds leaf blocks containing a match, and adds them and their ancestors to the set
+     */
+    private class MatchFinder
+            extends AbstractVisitor
+    {
+        final Set<Node> matched;
+
+        MatchFinder(final Set<Node> matched) {
+            this.matched = matched;
+        }
+
+        @Override
+        public void visit(final Paragraph paragraph) {
+            check(paragraph, inlineText(paragraph));
+        }
+
+        @Override
+        public void visit(final Heading heading) {
+            check(heading, inlineText(heading));
+        }
+
+        @Override
+        public void visit(final FencedCodeBlock fencedCodeBlock) {
+            check(fencedCodeBlock, fencedCodeBlock.getLiteral());
+        }
+
+        @Override
+        public void visit(final IndentedCodeBlock indentedCodeBlock) {
+            check(indentedCodeBlock, indentedCodeBlock.getLiteral());
+        }
+
+        @Override
+        public void visit(final HtmlBlock htmlBlock) {
+            check(htmlBlock, htmlBlock.getLiteral());
+        }
+
+        private void check(final Node block, final String text) {
+            if (!pattern.matcher(text).find()) {
+                return;
+            }
+            for (Node node = block; node != null; node = node.getParent()) {
+                if (!matched.add(node)) {
+                    break;
+                }
+            }
+        }
+
+        private String inlineText(final Node block) {
+            StringBuilder sb = new StringBuilder();
+            block.accept(new AbstractVisitor() {
+                @Override
+                public void visit(final Text text) {
+                    sb.append(text.getLiteral());
+                }
+
+                @Override
+                public void visit(final Code code) {
+                    sb.append(code.getLiteral());
+                }
+
+                @Override
+                public void visit(final SoftLineBreak softLineBreak) {
+                    sb.append('\n');
+                }
+
+                @Override
+                public void visit(final HardLineBreak hardLineBreak) {
+                    sb.append('\n');
+                }
+            });
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package us.vario.greg.md;
+
+import org.commonmark.node.*;
+import org.commonmark.parser.Parser;
+
+import java.io.*;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Checks relative link and image destinations in markdown files against the filesystem, and anchors against the
+ * headings of the target document. External URLs are only checked for valid syntax. Paths starting with '/' are
+ * resolved against the root: the directory given, or the directory of a file given.
+ * <p>
+ * Documents are parsed and links are checked in parallel. File status and document anchors are cached, so each file
+ * is checked or parsed once however many links refer to it.
+ */
+class LinkChecker {
+    private static final Pattern SCHEME = Pattern.compile("^[a-zA-Z][a-zA-Z0-9+.-]*:");
+    /**
+     * Start of a link reference definition line, up to its destination
+     */
+    private static final Pattern DEFINITION = Pattern.compile(" {0,3}\\[[^\\]]+\\]:");
+    private static final Pattern HTML_ANCHOR = Pattern.compile("(?i)\\s(?:name|id)\\s*=\\s*[\"']([^\"']+)[\"']");
+
+    enum FileStatus {
+        MISSING,
+        FILE,
+        DIRECTORY
+    }
+
+    private final Parser parser;
+    private final Map<Path, FileStatus> stats = new ConcurrentHashMap<>();
+    private final Map<Path, Set<String>> anchors = new ConcurrentHashMap<>();
+
+    LinkChecker(final Parser parser) {
+        this.parser = parser;
+    }
+
+    /**
+     * Check the links in the files, and directories recursively for markdown files, writing each broken link
+     *
+     * @param paths files or directories
+     * @param out   output
+     * @return exit code: 0 if all links are valid, otherwise 1
+     */
+    int check(final List<File> paths, final PrintStream out) throws IOException {
+        Map<Path, Path> roots = new LinkedHashMap<>();
+        for (File path : paths) {
+            List<Path> files = new ArrayList<>();
+            Grep.collect(path.toPath(), files);
+            Path root = path.isDirectory() ? path.toPath() : path.getAbsoluteFile().getParentFile().toPath();
+            files.forEach(file -> roots.putIfAbsent(file, root));
+        }
+        List<LinkRef> links;
+        try {
+            links = roots.entrySet()
+                         .parallelStream()
+                         .flatMap(file -> read(file.getKey(), file.getValue()).stream())
+                         .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        List<String> broken = links.parallelStream()
+                                   .map(this::check)
+                                   .filter(Objects::nonNull)
+                                   .collect(Collectors.toList());
+        broken.forEach(out::println);
+        return broken.isEmpty() ? 0 : 1;
+    }
+
+    /**
+     * Parse the document, caching its anchors
+     *
+     * @return the links in the document
+     */
+    private List<LinkRef> read(final Path file, final Path root) {
+        String source;
+        try {
+            source = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Collector collector = new Collector(file, root, source);
+        parser.parse(source).accept(collector);
+        anchors.putIfAbsent(key(file), collector.anchors);
+        return collector.links;
+    }
+
+    /**
+     * @return an error message, or null if the link is valid
+     */
+    private String check(final LinkRef link) {
+        String dest = link.destination;
+        if (dest.isEmpty()) {
+            return null;
+        }
+        if (SCHEME.matcher(dest).find() || dest.startsWith("//")) {
+            try {
+                new URI(dest);
+                return null;
+            } catch (URISyntaxException e) {
+                return link.error("invalid URL: " + e.getReason());
+            }
+        }
+        String path = dest;
+        String anchor = null;
+        int hash = path.indexOf('#');
+        if (hash >= 0) {
+            anchor = decode(path.substring(hash + 1));
+            path = path.substring(0, hash);
+        }
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        Path target = link.file;
+        if (!path.isEmpty()) {
+            try {
+                String decoded = decode(path);
+                target = decoded.startsWith("/")
+                         ? link.root.resolve(decoded.substring(1))
+                         : link.file.toAbsolutePath().getParent().resolve(decoded);
+            } catch (InvalidPathException e) {
+                return link.error("invalid path");
+            }
+            if (stat(target) == FileStatus.MISSING) {
+                return link.error("file not found");
+            }
+        }
+        if (null != anchor && !anchor.isEmpty() && stat(target) == FileStatus.FILE
+            && Grep.MARKDOWN_FILE.matcher(target.getFileName().toString()).matches()) {
+            Set<String> targetAnchors = anchors(target);
+            if (!targetAnchors.contains(anchor) && !targetAnchors.contains(anchor.toLowerCase())) {
+                return link.error("anchor not found");
+            }
+        }
+        return null;
+    }
+
+    private FileStatus stat(final Path path) {
+        return stats.computeIfAbsent(key(path), p -> {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                return attrs.isDirectory() ? FileStatus.DIRECTORY : FileStatus.FILE;
+            } catch (IOException e) {
+                return FileStatus.MISSING;
+            }
+        });
+    }
+
+    private Set<String> anchors(final Path path) {
+        return anchors.computeIfAbsent(key(path), p -> {
+            try {
+                String source = new String(Files.readAllBytes(p), StandardCharsets.UTF_8);
+                Collector collector = new Collector(p, null, source);
+                parser.parse(source).accept(collector);
+                return collector.anchors;
+            } catch (IOException e) {
+                return Collections.emptySet();
+            }
+        });
+    }
+
+    private static Path key(final Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Decode %XX escapes as UTF-8, leaving invalid escapes as is
+     */
+    static String decode(final String text) {
+        if (text.indexOf('%') < 0) {
+            return text;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '%' && i + 2 < text.length()
+                && Character.digit(text.charAt(i + 1), 16) >= 0
+                && Character.digit(text.charAt(i + 2), 16) >= 0) {
+                bytes.write(Integer.parseInt(text.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                byte[] utf8 = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+                bytes.write(utf8, 0, utf8.length);
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the GitHub style anchor for a heading
+     */
+    static String slug(final String heading) {
+        StringBuilder sb = new StringBuilder(heading.length());
+        String lower = heading.trim().toLowerCase();
+        for (int i = 0; i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            if (c == ' ') {
+                sb.append('-');
+            } else if (c == '-' || c == '_' || Character.isLetterOrDigit(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A link destination, and where it was found
+     */
+    static class LinkRef {
+        final Path file;
+        final Path root;
+        final int line;
+        final String destination;
+
+        LinkRef(final Path file, final Path root, final int line, final String destination) {
+            this.file = file;
+            this.root = root;
+            this.line = line;
+            this.destination = destination;
+        }
+
+        String error(final String message) {
+            return file + ":" + line + ": broken link '" + destination + "': " + message;
+        }
+    }
+
+    /**
+     * Collects links and anchors of a document. Since nodes have no source positions, the line of a link is found by
+     * searching the source for its destination after the previous link, which is approximate for reference links.
+     */
+    private static class Collector
+            extends AbstractVisitor
+    {
+        final Path file;
+        final Path root;
+        final String source;
+        final int[] lineStarts;
+        final List<LinkRef> links = new ArrayList<>();
+        final Set<String> anchors = new HashSet<>();
+        final Map<String, Integer> slugCounts = new HashMap<>();
+        int cursor;
+
+        /**
+         * @param root root for paths starting with '/', or null if only anchors are needed
+         */
+        Collector(final Path file, final Path root, final String source) {
+            this.file = file;
+            this.root = root;
+            this.source = source;
+            List<Integer> starts = new ArrayList<>();
+            starts.add(0);
+            for (int i = 0; i < source.length(); i++) {
+                if (source.charAt(i) == '\n') {
+                    starts.add(i + 1);
+                }
+            }
+            this.lineStarts = starts.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        @Override
+        public void visit(final Link link) {
+            add(link.getDestination());
+            visitChildren(link);
+        }
+
+        @Override
+        public void visit(final Image image) {
+            add(image.getDestination());
+            visitChildren(image);
+        }
+
+        @Override
+        public void visit(final Heading heading) {
+            StringBuilder sb = new StringBuilder();
+            heading.accept(new AbstractVisitor() {
+                @Override
+                public void visit(final Text text) {
+                    sb.append(text.getLiteral());
+                }
+
+                @Override
+                public void visit(final Code code) {
+                    sb.append(code.getLiteral());
+                }
+            });
+            String slug = slug(sb.toString());
+            int count = slugCounts.merge(slug, 1, Integer::sum);
+            anchors.add(count > 1 ? slug + "-" + (count - 1) : slug);
+            visitChildren(heading);
+        }
+
+        @Override
+        public void visit(final HtmlBlock htmlBlock) {
+            addHtmlAnchors(htmlBlock.getLiteral());
+        }
+
+        @Override
+        public void visit(final HtmlInline htmlInline) {
+            addHtmlAnchors(htmlInline.getLiteral());
+        }
+
+        private void addHtmlAnchors(final String html) {
+            Matcher matcher = HTML_ANCHOR.matcher(html);
+            while (matcher.find()) {
+                anchors.add(matcher.group(1));
+            }
+        }
+
+        /**
+         * Add a link, at the line where its destination is next found in the source. A destination written
+         * differently in the source, such as with escapes or in a definition before the cursor, gets the line of the
+         * previous link. A definition found after the cursor gives the line, but does not move the cursor past the
+         * links before it.
+         */
+        private void add(final String destination) {
+            int found = source.indexOf(destination, cursor);
+            if (found < 0) {
+                links.add(new LinkRef(file, root, line(cursor), destination));
+                return;
+            }
+            int line = line(found);
+            if (!DEFINITION.matcher(source).region(lineStarts[line - 1], found).lookingAt()) {
+                cursor = found + destination.length();
+            }
+            links.add(new LinkRef(file, root, line, destination));
+        }
+
+        private int line(final int offset) {
+            int index = Arrays.binarySearch(lineStarts, offset);
+            return index >= 0 ? index + 1 : -index - 1;
+        }
+    }
+}
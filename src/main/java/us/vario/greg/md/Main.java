@@ -10,8 +10,16 @@ import org.commonmark.renderer.html.*;
 import picocli.CommandLine;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.regex.Matcher;
@@ -25,12 +33,12 @@ public class Main
 {
 
     public static final String DEFAULT_PROFILE = "light";
-    @CommandLine.Parameters(index = "0",
-                            description = "The file to read. If unspecified, a README file in local directory will be"
-                                          + " read.",
-                            paramLabel = "FILE",
-                            arity = "0..1")
-    private File file;
+    @CommandLine.Parameters(index = "0..*",
+                            description = "The files to read. If unspecified, a README file in local directory will be"
+                                          + " read. With --grep or --check-links, directories are searched for "
+                                          + "markdown files.",
+                            paramLabel = "FILE")
+    private List<File> files = new ArrayList<>();
 
     @CommandLine.Option(names = {"-H", "--html"}, description = "render as html")
     private boolean html;
@@ -42,7 +50,8 @@ public class Main
     private boolean markdown;
 
     @CommandLine.Option(names = {"-P", "--profile"},
-                        description = "Use a prefdefined color profile: [light,dark], can be set with env var "
+                        description = "Use a color profile: [light,dark], a NAME.properties file in "
+                                      + "~/.config/mdcat, or a path to a .properties file. Can be set with env var "
                                       + "MD_PROFILE",
                         defaultValue = "${env:MD_PROFILE}")
     private String profile;
@@ -57,8 +66,67 @@ public class Main
     )
     private Pattern readmePattern = Pattern.compile("(?i)readme(\\.(te?xt|md|markdown))?");
 
+    @CommandLine.Option(names = {"-g", "--grep"},
+                        description = "Search the files for a regex (or literal text), and render only the matching "
+                                      + "blocks with the matches highlighted. Files without the literal text the "
+                                      + "regex requires are not parsed; a regex with flags or a top-level '|' "
+                                      + "parses every file.",
+                        paramLabel = "PATTERN")
+    private String grep;
+
+    @CommandLine.Option(names = {"-C", "--colors"},
+                        description = "Color mode: [auto,none,16,256,truecolor], auto detects using NO_COLOR, "
+                                      + "COLORTERM and TERM. Can be set with env var MD_COLORS",
+                        defaultValue = "${env:MD_COLORS:-auto}",
+                        paramLabel = "MODE")
+    private String colorMode = "auto";
+
+    @CommandLine.Option(names = {"--head"},
+                        description = "Render only the first N blocks of each file",
+                        paramLabel = "N")
+    private Integer head;
+
+    @CommandLine.Option(names = {"--tail"},
+                        description = "Render only the last N blocks of each file",
+                        paramLabel = "N")
+    private Integer tail;
+
+    @CommandLine.Option(names = {"--lines"},
+                        description = "Stop after N lines of output for each file",
+                        paramLabel = "N")
+    private Integer lines;
+
+    @CommandLine.Option(names = {"--max-bytes"},
+                        description = "Stop after K bytes of output for each file",
+                        paramLabel = "K")
+    private Long maxBytes;
+
+    @CommandLine.Option(names = {"--check-links"},
+                        description = "Check relative links and images in the files, or markdown files in "
+                                      + "directories, against the filesystem and heading anchors. External URLs are "
+                                      + "only checked for valid syntax. Paths starting with '/' are resolved "
+                                      + "against the directory given. Line numbers are approximate: a link is "
+                                      + "reported where its destination next appears in the source.")
+    private boolean checkLinks;
+
+    @CommandLine.Option(names = {"-o", "--output"},
+                        description = "Write the output to a file. With multiple input files (or if FILE is a "
+                                      + "directory), write each to a file in the directory FILE. Rendered output is "
+                                      + "cached, and copied when the input is unchanged.",
+                        paramLabel = "FILE")
+    private File output;
+
+    @CommandLine.Option(names = {"--engine"},
+                        description = "Rendering engine: [ast,stream]. stream renders from parse events without "
+                                      + "building a document tree, and supports a subset of markdown (no reference "
+                                      + "links or bare URL autolinks). Can be set with env var MD_ENGINE",
+                        defaultValue = "${env:MD_ENGINE:-ast}",
+                        paramLabel = "ENGINE")
+    private String engine = "ast";
+
     public static void main(String[] args) {
-        new CommandLine(new Main()).setExecutionExceptionHandler(new ShortErrorMessageHandler()).execute(args);
+        System.exit(new CommandLine(new Main()).setExecutionExceptionHandler(new ShortErrorMessageHandler())
+                                               .execute(args));
     }
 
     static class ShortErrorMessageHandler
@@ -85,84 +153,285 @@ public class Main
 
     @Override
     public Integer call() throws Exception {
-
-        if (file == null && !noreadme) {
+        colors = loadColors(Ansi.ColorMode.forName(colorMode, System.getenv()));
+        if (grep != null) {
+            if (files.isEmpty()) {
+                files.add(new File("."));
+            }
+            return new Grep(
+                    Pattern.compile(grep),
+                    getParser(),
+                    this::createRenderer,
+                    html ? null : colors.get("header")
+            ).search(files, System.out);
+        }
+        if (files.isEmpty() && !noreadme) {
             //look for readme file
             Optional<File> first = Arrays.stream(
                     Objects.requireNonNull(
                             new File(".")
                                     .listFiles((dir, name) -> readmePattern.matcher(name).matches())
                     )).findFirst();
-            first.ifPresent((val) -> file = val);
+            first.ifPresent(files::add);
         }
-        if (file == null) {
+        if (files.isEmpty()) {
             throw new Exception("No README file was located. Please specify a file. (Readme pattern: "
                                 + readmePattern
                                 + ")");
         }
+        if (checkLinks) {
+            return new LinkChecker(getParser()).check(files, System.out);
+        }
         Parser parser = getParser();
-        try (FileInputStream is = new FileInputStream(file)) {
-
-            Node document = parser.parseReader(new InputStreamReader(is));
-            if (html) {
-                HtmlRenderer renderer = HtmlRenderer.builder().build();
+        HtmlRenderer renderer = createRenderer(null, null);
+        Preview preview = createPreview(parser, renderer);
+        if (isStreamEngine()) {
+            if (html || null != preview || null != output) {
+                throw new Exception("--engine stream cannot be combined with --html, --output or preview options");
+            }
+            for (File file : files) {
+                renderEvents(file);
+            }
+            return 0;
+        }
+        if (null != output) {
+            renderToFiles(parser, renderer, preview);
+            return 0;
+        }
+        for (File file : files) {
+            if (null != preview) {
+                preview.render(file, System.out);
+                continue;
+            }
+            try (FileInputStream is = new FileInputStream(file)) {
+                Node document = parser.parseReader(new InputStreamReader(is));
                 renderer.render(document, System.out);
-                return null;
             }
-            Map<String, String> options = new HashMap<>();
-            Map<String, String> colors = new HashMap<>(DEFAULT_COLORS);
+        }
+        return 0;
+    }
 
-            if (null == profile) {
-                profile = DEFAULT_PROFILE;
+    private boolean isStreamEngine() throws Exception {
+        switch (engine.toLowerCase()) {
+            case "ast":
+                return false;
+            case "stream":
+                return true;
+            default:
+                throw new Exception("Unknown engine: " + engine + ", expected one of: ast,stream");
+        }
+    }
+
+    /**
+     * Render a file to stdout from parse events, without building a document tree
+     */
+    private void renderEvents(final File file) throws IOException {
+        //a file decodes to at most as many chars as bytes, the extra char lets the last read see the end of the file
+        char[] source = new char[(int) Math.min(Integer.MAX_VALUE - 8, file.length() + 1)];
+        int length = 0;
+        try (Reader reader = new InputStreamReader(new FileInputStream(file))) {
+            int read;
+            while ((read = reader.read(source, length, source.length - length)) >= 0) {
+                length += read;
+                if (length == source.length) {
+                    source = Arrays.copyOf(source, source.length * 2);
+                }
+            }
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        EventRenderer renderer = new EventRenderer(source, writer, colors, options, !markdown);
+        try {
+            new EventParser(source, length, renderer).parse();
+            renderer.finish();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        writer.flush();
+    }
+
+    /**
+     * Render each input to the output file, or to a file in the output directory. Each file is written to a temporary
+     * file first and moved into place, so an input is never truncated before it is read.
+     */
+    private void renderToFiles(final Parser parser, final HtmlRenderer renderer, final Preview preview)
+            throws Exception
+    {
+        boolean toDir = files.size() > 1 || output.isDirectory();
+        if (toDir) {
+            Files.createDirectories(output.toPath());
+        }
+        List<Path> targets = new ArrayList<>();
+        Set<Path> written = new HashSet<>();
+        for (File file : files) {
+            Path target = toDir ? output.toPath().resolve(outputName(file)) : output.toPath();
+            if (!written.add(target.toAbsolutePath().normalize())) {
+                throw new Exception("Multiple inputs would be written to the same file: " + target);
             }
-            if (null != profile) {
-                colors.putAll(loadProfile(profile));
+            if (Files.exists(target)) {
+                for (File input : files) {
+                    if (Files.isSameFile(target, input.toPath())) {
+                        throw new Exception("Output would overwrite the input: " + target);
+                    }
+                }
             }
-            System.getenv().forEach((s, s2) -> {
-                if (s.startsWith("MD_OPT_")) {
-                    options.put(s.substring(7), s2);
+            targets.add(target);
+        }
+        RenderCache cache = null == preview
+                            ? new RenderCache(Profiles.cacheDir(System.getenv()).resolve("render"), renderSignature())
+                            : null;
+        ChannelOutput out = new ChannelOutput();
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            Path input = file.toPath();
+            Path target = targets.get(i);
+            Path temp = createTemp(target);
+            try {
+                RenderCache.Stamp stamp = new RenderCache.Stamp(input);
+                boolean cached = null != cache && cache.copyTo(input, stamp, temp);
+                if (!cached) {
+                    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                        out.open(channel);
+                        if (null != preview) {
+                            preview.render(file, out);
+                        } else {
+                            try (FileInputStream is = new FileInputStream(file)) {
+                                renderer.render(parser.parseReader(new InputStreamReader(is)), out);
+                            }
+                        }
+                        out.flush();
+                    }
                 }
-                if (s.startsWith("MD_COL_")) {
-                    String colName = s.substring("MD_COL_".length()).toLowerCase();
-                    colors.put(colName, s2);
+                if (Files.exists(target)
+                    && Files.getFileStore(temp).supportsFileAttributeView(PosixFileAttributeView.class)) {
+                    //keep the mode of the file being replaced
+                    Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
                 }
-            });
-            HtmlRenderer renderer = HtmlRenderer.builder().
-                    nodeRendererFactory(new MyCoreNodeRendererFactory(colors, options, !markdown)).build();
-            renderer.render(document, System.out);
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                if (!cached && null != cache) {
+                    cache.store(input, stamp, target);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
 
+    /**
+     * Create an empty file next to the target with the default permissions for new files. {@link Files#createTempFile}
+     * would make it readable by its owner only.
+     */
+    private static Path createTemp(final Path target) throws IOException {
+        Path dir = target.toAbsolutePath().getParent();
+        while (true) {
+            String random = Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36);
+            try {
+                return Files.createFile(dir.resolve("." + target.getFileName() + random + ".tmp"));
+            } catch (FileAlreadyExistsException e) {
+                //try another name
+            }
         }
-        return 0;
     }
 
-    private Parser getParser() {
-        return Parser.builder()
-                     .extensions(Collections.singletonList(AutolinkExtension.create()))
-                     .build();
+    private String outputName(final File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return (dot > 0 ? name.substring(0, dot) : name) + (html ? ".html" : ".txt");
     }
 
-    private Map<? extends String, ? extends String> loadProfile(final String profile) {
-        HashMap<String, String> map = new HashMap<>();
-        Properties props = new Properties();
-
-        try (
-                InputStream resourceAsStream = Main.class
-                        .getClassLoader()
-                        .getResourceAsStream("md-profile-" + profile.toLowerCase() + ".properties")
-        ) {
-            if (null != resourceAsStream) {
-                props.load(resourceAsStream);
-                for (Object o : props.keySet()) {
-                    map.put(o.toString(), props.getProperty(o.toString()));
-                }
-            } else {
-                throw new RuntimeException("no profile found: md-profile-" + profile.toLowerCase() + ".properties");
+    /**
+     * @return description of the options affecting rendered output
+     */
+    private String renderSignature() throws IOException {
+        Path build = Profiles.codeSource();
+        return "build=" + (null != build ? build + "@" + Files.getLastModifiedTime(build).toMillis() : "")
+               + ",html=" + html
+               + ",markdown=" + markdown
+               + ",colors=" + new TreeMap<>(colors)
+               + ",options=" + new TreeMap<>(options);
+    }
+
+    /**
+     * @return preview for the head/tail/lines/max-bytes options, or null if none are set
+     */
+    private Preview createPreview(final Parser parser, final HtmlRenderer renderer) throws Exception {
+        if (null == head && null == tail && null == lines && null == maxBytes) {
+            return null;
+        }
+        if (null != head && null != tail) {
+            throw new Exception("--head and --tail cannot be combined");
+        }
+        if (null != head && head < 1 || null != tail && tail < 1 || null != lines && lines < 1) {
+            throw new Exception("--head, --tail and --lines must be at least 1");
+        }
+        if (null != maxBytes && maxBytes < 0) {
+            throw new Exception("--max-bytes must not be negative");
+        }
+        return new Preview(
+                parser,
+                renderer,
+                null != head ? head : -1,
+                null != tail ? tail : -1,
+                null != lines ? lines : -1,
+                null != maxBytes ? maxBytes : -1
+        );
+    }
+
+    /**
+     * Create the renderer for the current options
+     *
+     * @param highlight pattern to highlight within text, or null
+     * @param only      if not null, only these block nodes are rendered
+     */
+    HtmlRenderer createRenderer(final Pattern highlight, final Set<Node> only) {
+        if (html) {
+            if (null == highlight && null == only) {
+                return HtmlRenderer.builder().build();
             }
-        } catch (IOException ignored) {
+            return HtmlRenderer.builder()
+                               .nodeRendererFactory(context -> new FilteredHtmlNodeRenderer(context, highlight, only))
+                               .build();
+        }
+        return HtmlRenderer.builder()
+                           .nodeRendererFactory(new MyCoreNodeRendererFactory(
+                                   colors,
+                                   options,
+                                   !markdown,
+                                   highlight,
+                                   only
+                           ))
+                           .build();
+    }
+
+    private Map<String, String> options = new HashMap<>();
+    /**
+     * Resolved escape sequences for each style name
+     */
+    private Map<String, String> colors;
 
+    private Map<String, String> loadColors(final Ansi.ColorMode mode) throws IOException {
+        if (null == profile) {
+            profile = DEFAULT_PROFILE;
         }
+        Map<String, String> colors = new HashMap<>(new Profiles(System.getenv()).load(profile, DEFAULT_COLORS, mode));
+
+        Map<String, String> envColors = new HashMap<>();
+        System.getenv().forEach((s, s2) -> {
+            if (s.startsWith("MD_OPT_")) {
+                options.put(s.substring(7), s2);
+            }
+            if (s.startsWith("MD_COL_")) {
+                String colName = s.substring("MD_COL_".length()).toLowerCase();
+                envColors.put(colName, s2);
+            }
+        });
+        colors.putAll(Profiles.compile(envColors, mode, "MD_COL_* env vars"));
+        return colors;
+    }
 
-        return map;
+    private Parser getParser() {
+        return Parser.builder()
+                     .extensions(Collections.singletonList(AutolinkExtension.create()))
+                     .build();
     }
 
     static Map<String, String> DEFAULT_COLORS;
@@ -187,6 +456,7 @@ public class Main
         map.put("linktext", "brightblue");
         map.put("checked", "brightgreen");
         map.put("unchecked", "orange");
+        map.put("match", "bg-yellow");
 
         DEFAULT_COLORS = Collections.unmodifiableMap(map);
 
@@ -203,11 +473,192 @@ public class Main
         final Map<String, String> colors;
         final Map<String, String> options;
         final boolean plain;
+        final Pattern highlight;
+        final Set<Node> only;
 
 
         @Override
         public NodeRenderer create(final HtmlNodeRendererContext context) {
-            return new MyCoreNodeRenderer(context, colors, options, plain);
+            return new MyCoreNodeRenderer(context, colors, options, plain, highlight, only);
+        }
+    }
+
+    /**
+     * Html renderer which renders only some blocks, and highlights matches with {@code <mark>}
+     */
+    private static class FilteredHtmlNodeRenderer
+            extends CoreHtmlNodeRenderer
+    {
+        final Pattern highlight;
+        final Set<Node> only;
+
+        FilteredHtmlNodeRenderer(
+                final HtmlNodeRendererContext context,
+                final Pattern highlight,
+                final Set<Node> only
+        )
+        {
+            super(context);
+            this.highlight = highlight;
+            this.only = only;
+        }
+
+        private boolean skip(Node block) {
+            return null != only && !only.contains(block);
+        }
+
+        @Override
+        public void visit(final Paragraph paragraph) {
+            if (!skip(paragraph)) {
+                super.visit(paragraph);
+            }
+        }
+
+        @Override
+        public void visit(final Heading heading) {
+            if (!skip(heading)) {
+                super.visit(heading);
+            }
+        }
+
+        @Override
+        public void visit(final BlockQuote blockQuote) {
+            if (!skip(blockQuote)) {
+                super.visit(blockQuote);
+            }
+        }
+
+        @Override
+        public void visit(final BulletList bulletList) {
+            if (!skip(bulletList)) {
+                super.visit(bulletList);
+            }
+        }
+
+        @Override
+        public void visit(final OrderedList orderedList) {
+            if (!skip(orderedList)) {
+                super.visit(orderedList);
+            }
+        }
+
+        @Override
+        public void visit(final ListItem listItem) {
+            if (skip(listItem)) {
+                return;
+            }
+            Map<String, String> attrs = new LinkedHashMap<>();
+            if (null != only && listItem.getParent() instanceof OrderedList) {
+                //keep the numbering of the items which are rendered
+                int index = ((OrderedList) listItem.getParent()).getStartNumber();
+                for (Node node = listItem.getPrevious(); null != node; node = node.getPrevious()) {
+                    index++;
+                }
+                attrs.put("value", Integer.toString(index));
+            }
+            HtmlWriter html = context.getWriter();
+            html.tag("li", attrs);
+            visitChildren(listItem);
+            html.tag("/li");
+            html.line();
+        }
+
+        @Override
+        public void visit(final FencedCodeBlock fencedCodeBlock) {
+            if (skip(fencedCodeBlock)) {
+                return;
+            }
+            if (null == highlight) {
+                super.visit(fencedCodeBlock);
+                return;
+            }
+            Map<String, String> attrs = new LinkedHashMap<>();
+            String info = fencedCodeBlock.getInfo();
+            if (null != info && !info.isEmpty()) {
+                attrs.put("class", "language-" + info.split(" ")[0]);
+            }
+            renderCodeBlock(fencedCodeBlock.getLiteral(), fencedCodeBlock, attrs);
+        }
+
+        @Override
+        public void visit(final IndentedCodeBlock indentedCodeBlock) {
+            if (skip(indentedCodeBlock)) {
+                return;
+            }
+            if (null == highlight) {
+                super.visit(indentedCodeBlock);
+                return;
+            }
+            renderCodeBlock(indentedCodeBlock.getLiteral(), indentedCodeBlock, new LinkedHashMap<>());
+        }
+
+        /**
+         * Render a code block as {@link CoreHtmlNodeRenderer} does, with the matches highlighted
+         */
+        private void renderCodeBlock(final String literal, final Node block, final Map<String, String> codeAttrs) {
+            HtmlWriter html = context.getWriter();
+            html.line();
+            html.tag("pre", context.extendAttributes(block, "pre", new LinkedHashMap<>()));
+            html.tag("code", context.extendAttributes(block, "code", codeAttrs));
+            writeHighlighted(literal);
+            html.tag("/code");
+            html.tag("/pre");
+            html.line();
+        }
+
+        @Override
+        public void visit(final HtmlBlock htmlBlock) {
+            if (!skip(htmlBlock)) {
+                super.visit(htmlBlock);
+            }
+        }
+
+        @Override
+        public void visit(final ThematicBreak thematicBreak) {
+            if (!skip(thematicBreak)) {
+                super.visit(thematicBreak);
+            }
+        }
+
+        @Override
+        public void visit(final Text text) {
+            if (null == highlight) {
+                super.visit(text);
+                return;
+            }
+            writeHighlighted(text.getLiteral());
+        }
+
+        @Override
+        public void visit(final Code code) {
+            if (null == highlight) {
+                super.visit(code);
+                return;
+            }
+            HtmlWriter html = context.getWriter();
+            html.tag("code", context.extendAttributes(code, "code", new LinkedHashMap<>()));
+            writeHighlighted(code.getLiteral());
+            html.tag("/code");
+        }
+
+        /**
+         * Write text, wrapping matches of the highlight pattern in {@code <mark>}
+         */
+        private void writeHighlighted(final String literal) {
+            HtmlWriter html = context.getWriter();
+            Matcher matcher = highlight.matcher(literal);
+            int last = 0;
+            while (matcher.find()) {
+                if (matcher.end() == matcher.start()) {
+                    continue;
+                }
+                html.text(literal.substring(last, matcher.start()));
+                html.raw("<mark>");
+                html.text(matcher.group());
+                html.raw("</mark>");
+                last = matcher.end();
+            }
+            html.text(literal.substring(last));
         }
     }
 
@@ -219,18 +670,31 @@ public class Main
         final Map<String, String> colors;
         final Map<String, String> options;
         final boolean plain;
+        final Pattern highlight;
+        final Set<Node> only;
 
         public MyCoreNodeRenderer(
                 final HtmlNodeRendererContext context,
                 final Map<String, String> colors,
                 final Map<String, String> options,
-                boolean plain
+                boolean plain,
+                final Pattern highlight,
+                final Set<Node> only
         )
         {
             super(context);
             this.colors = colors;
             this.options = options;
             this.plain = plain;
+            this.highlight = highlight;
+            this.only = only;
+        }
+
+        /**
+         * @return true if the block should not be rendered
+         */
+        private boolean skip(Node block) {
+            return null != only && !only.contains(block);
         }
 
         ArrayDeque<Ctx> ctxtStack = new ArrayDeque<Ctx>();
@@ -243,6 +707,9 @@ public class Main
 
         @Override
         public void visit(final OrderedList orderedList) {
+            if (skip(orderedList)) {
+                return;
+            }
             Ctx ctx = new Ctx(orderedList, orderedList.getStartNumber());
             ctx.textColor = getColor("bullet");
             ctx.setPrefixer((text) -> ctx.nextListItemIndex() + ". ");
@@ -253,6 +720,9 @@ public class Main
 
         @Override
         public void visit(final BulletList bulletList) {
+            if (skip(bulletList)) {
+                return;
+            }
             Ctx ctx = new Ctx(bulletList);
             ctx.textColor = getColor("bullet");
             if (plain) {
@@ -294,6 +764,14 @@ public class Main
 
         @Override
         public void visit(final ListItem listItem) {
+            if (skip(listItem)) {
+                Ctx ctx = ctxtStack.peek();
+                if (null != ctx && listItem.getParent() instanceof OrderedList && ctx.node == listItem.getParent()) {
+                    //keep the numbering of the items which are rendered
+                    ctx.nextListItemIndex();
+                }
+                return;
+            }
             visitChildren(listItem);
             line();
         }
@@ -312,7 +790,9 @@ public class Main
 
         @Override
         public void visit(final Heading heading) {
-
+            if (skip(heading)) {
+                return;
+            }
             line();
             Ctx ctx = new Ctx(heading);
 
@@ -335,6 +815,9 @@ public class Main
 
         @Override
         public void visit(final Paragraph paragraph) {
+            if (skip(paragraph)) {
+                return;
+            }
             boolean inTightList = isInTightList(paragraph);
             if (!inTightList) {
                 line();
@@ -347,15 +830,16 @@ public class Main
 
         @Override
         public void visit(final Code code) {
-            html().text(Ansi.beginColor(getColor("code")));
+            String color = getColor("code");
+            html().text(Ansi.beginColor(color));
             if (!plain) {
                 html().text("`");
             }
-            html().raw(code.getLiteral());
+            rawHighlighted(code.getLiteral(), color);
             if (!plain) {
                 html().text("`");
             }
-            html().text(Ansi.reset);
+            html().text(Ansi.endColor(color));
         }
 
         @Override
@@ -386,11 +870,11 @@ public class Main
         private void emitColorized(final String color, final String text, boolean raw) {
             html().text(Ansi.beginColor(color));
             if (raw) {
-                html().raw(text);
+                rawHighlighted(text, color);
             } else {
                 html().text(text);
             }
-            html().text(Ansi.reset);
+            html().text(Ansi.endColor(color));
         }
 
         @Override
@@ -423,11 +907,12 @@ public class Main
                 html().text("](");
                 html().text(Ansi.colorize(url, getColor("linkHref", "href")));
                 if (link.getTitle() != null) {
-                    html().text(Ansi.beginColor(getColor("linkTitle", "title")));
+                    String titleColor = getColor("linkTitle", "title");
+                    html().text(Ansi.beginColor(titleColor));
                     html().raw(" \"");
                     html().text(link.getTitle());
                     html().raw("\"");
-                    html().raw(Ansi.reset);
+                    html().raw(Ansi.endColor(titleColor));
                 }
                 html().text(")");
             }
@@ -450,11 +935,12 @@ public class Main
                 html().text("](");
                 html().text(Ansi.colorize(url, getColor("imageHref", "href")));
                 if (image.getTitle() != null) {
-                    html().text(Ansi.beginColor(getColor("imageTitle", "title")));
+                    String titleColor = getColor("imageTitle", "title");
+                    html().text(Ansi.beginColor(titleColor));
                     html().raw(" \"");
                     html().text(image.getTitle());
                     html().raw("\"");
-                    html().raw(Ansi.reset);
+                    html().raw(Ansi.endColor(titleColor));
                 }
                 html().text(")");
             }
@@ -463,6 +949,9 @@ public class Main
         }
 
 
+        /**
+         * @return the escape sequence of the first defined style name, or null
+         */
         private String getColor(final String... colorsarr) {
             for (String color : colorsarr) {
                 if (null != colors.get(color.toLowerCase())) {
@@ -474,6 +963,9 @@ public class Main
 
         @Override
         public void visit(final BlockQuote blockQuote) {
+            if (skip(blockQuote)) {
+                return;
+            }
             Ctx ctx = new Ctx(blockQuote);
             ctxtStack.push(ctx);
             ctx.setTextColor(getColor("blockquote"));
@@ -487,6 +979,9 @@ public class Main
 
         @Override
         public void visit(final IndentedCodeBlock indentedCodeBlock) {
+            if (skip(indentedCodeBlock)) {
+                return;
+            }
             if (!plain) {
                 emitColorized(getColor("code"), indent("    ", indentedCodeBlock), true);
             } else {
@@ -494,22 +989,34 @@ public class Main
             }
         }
 
+        /**
+         * Indent each line in a single pass. The parser has already normalized line endings to \n.
+         */
         private String indent(String indent, final IndentedCodeBlock indentedCodeBlock) {
-
-            String[] split = indentedCodeBlock.getLiteral().split("[\r\n]");
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < split.length; i++) {
-                String s = split[i];
+            String literal = indentedCodeBlock.getLiteral();
+            int len = literal.length();
+            StringBuilder sb = new StringBuilder(len + len / 8 + indent.length());
+            int start = 0;
+            while (start < len) {
+                int end = literal.indexOf('\n', start);
+                if (end < 0) {
+                    end = len;
+                }
                 sb.append(indent);
-                sb.append(s);
+                sb.append(literal, start, end);
                 sb.append("\n");
+                start = end + 1;
             }
             return sb.toString();
         }
 
         @Override
         public void visit(final FencedCodeBlock fencedCodeBlock) {
-            html().text(Ansi.beginColor(getColor("code")));
+            if (skip(fencedCodeBlock)) {
+                return;
+            }
+            String color = getColor("code");
+            html().text(Ansi.beginColor(color));
             StringBuilder fence = new StringBuilder();
             for (int i = 0; i < fencedCodeBlock.getFenceLength(); i++) {
                 fence.append(fencedCodeBlock.getFenceChar());
@@ -518,12 +1025,12 @@ public class Main
                 html().text(fence.toString());
                 line();
             }
-            html().raw(fencedCodeBlock.getLiteral());
+            rawHighlighted(fencedCodeBlock.getLiteral(), color);
             line();
             if (!plain) {
                 html().text(fence.toString());
             }
-            html().text(Ansi.reset);
+            html().text(Ansi.endColor(color));
         }
         boolean lastLine=false;
         private void line() {
@@ -543,8 +1050,19 @@ public class Main
             lastLine=true;
         }
 
+        @Override
+        public void visit(final HtmlBlock htmlBlock) {
+            if (skip(htmlBlock)) {
+                return;
+            }
+            super.visit(htmlBlock);
+        }
+
         @Override
         public void visit(final ThematicBreak thematicBreak) {
+            if (skip(thematicBreak)) {
+                return;
+            }
             html().raw("---");
         }
 
@@ -577,14 +1095,14 @@ public class Main
                     if (textcolor != null) {
                         html().text(Ansi.beginColor(textcolor));
                     }
-                    html().raw(ctx.transform(literal));
+                    rawHighlighted(ctx.transform(literal), textcolor);
                 });
             } else {
 
                 if (textcolor != null) {
                     html().text(Ansi.beginColor(textcolor));
                 }
-                html().raw(literal);
+                rawHighlighted(literal, textcolor);
             }
             if (text.getLiteral().length() > 0) {
                 lastLine = text.getLiteral().charAt(text.getLiteral().length() - 1) == '\n';
@@ -595,6 +1113,36 @@ public class Main
             }
         }
 
+        /**
+         * Write raw text, highlighting any matches of the highlight pattern
+         *
+         * @param text  text
+         * @param color color active for the text, restored after each match
+         */
+        private void rawHighlighted(final String text, final String color) {
+            if (null == highlight) {
+                html().raw(text);
+                return;
+            }
+            String matchColor = getColor("match");
+            Matcher matcher = highlight.matcher(text);
+            int last = 0;
+            while (matcher.find()) {
+                if (matcher.end() == matcher.start()) {
+                    continue;
+                }
+                html().raw(text.substring(last, matcher.start()));
+                html().text(Ansi.beginColor(matchColor));
+                html().raw(matcher.group());
+                html().text(Ansi.endColor(matchColor));
+                if (null != color) {
+                    html().text(Ansi.beginColor(color));
+                }
+                last = matcher.end();
+            }
+            html().raw(text.substring(last));
+        }
+
         private HtmlWriter html() {
             return context.getWriter();
         }
@@ -666,6 +1214,75 @@ public class Main
         static String reset = esc + "[0m";
         static String modeBold = "bold-";
 
+        /**
+         * Color capability of the output
+         */
+        enum ColorMode {
+            NONE,
+            ANSI16,
+            ANSI256,
+            TRUECOLOR;
+
+            /**
+             * @param name mode name: auto, none, 16, 256, or truecolor
+             * @param env  environment used for auto detection
+             */
+            static ColorMode forName(final String name, final Map<String, String> env) {
+                switch (name.toLowerCase()) {
+                    case "auto":
+                        return detect(env);
+                    case "none":
+                        return NONE;
+                    case "16":
+                        return ANSI16;
+                    case "256":
+                        return ANSI256;
+                    case "truecolor":
+                    case "24bit":
+                        return TRUECOLOR;
+                    default:
+                        throw new IllegalArgumentException(
+                                "Unknown color mode: " + name + ", expected one of: auto,none,16,256,truecolor"
+                        );
+                }
+            }
+
+            /**
+             * Detect the color mode using NO_COLOR, COLORTERM and TERM
+             */
+            static ColorMode detect(final Map<String, String> env) {
+                if (null != env.get("NO_COLOR") && !env.get("NO_COLOR").isEmpty()) {
+                    return NONE;
+                }
+                String colorterm = env.getOrDefault("COLORTERM", "").toLowerCase();
+                if (colorterm.equals("truecolor") || colorterm.equals("24bit")) {
+                    return TRUECOLOR;
+                }
+                String term = env.get("TERM");
+                if (null == term) {
+                    return ANSI256;
+                }
+                term = term.toLowerCase();
+                if (term.equals("dumb")) {
+                    return NONE;
+                }
+                if (term.contains("truecolor") || term.contains("24bit") || term.endsWith("-direct")) {
+                    return TRUECOLOR;
+                }
+                if (term.contains("256")) {
+                    return ANSI256;
+                }
+                if (term.endsWith("-16color")
+                    || term.equals("linux")
+                    || term.equals("ansi")
+                    || term.equals("cons25")
+                    || term.startsWith("vt")) {
+                    return ANSI16;
+                }
+                return ANSI256;
+            }
+        }
+
         static int rgb(int r, int g, int b) {
             return 16 + b + 6 * g + 36 * r;
         }
@@ -693,136 +1310,242 @@ public class Main
             return escStart + sb.toString() + "m";
         }
 
+        /**
+         * A color, either an index in the 256 color palette (0-15 being the basic colors), or a 24-bit rgb value
+         */
         @Data
         static class Color {
-            Integer[] mods;
+            final boolean truecolor;
+            final int value;
 
+            Color(final boolean truecolor, final int value) {
+                this.truecolor = truecolor;
+                this.value = value;
+            }
 
-            public Color(final Integer... mods) {
-                this.mods = mods;
+            static Color indexed(int index) {
+                return new Color(false, index);
             }
 
-            public Color mods(final Integer more) {
-                Integer[] more1 = new Integer[1];
-                more1[0] = more;
-                return mods(more1);
+            static Color rgb(int rgb) {
+                return new Color(true, rgb);
             }
 
-            public Color mods(final Integer[] more) {
-                List<Integer> integers = new ArrayList<>(Arrays.asList(more));
-                Integer[] modsar = mods;
-                integers.addAll(Arrays.asList(mods));
-                return new Color(integers.toArray(new Integer[0]));
+            /**
+             * @return the SGR parameters for this color in the given mode
+             */
+            List<Integer> params(final boolean bg, final ColorMode mode) {
+                int index = value;
+                if (truecolor) {
+                    if (mode == ColorMode.TRUECOLOR) {
+                        return Arrays.asList(bg ? BG : FG, 2, (value >> 16) & 0xff, (value >> 8) & 0xff, value & 0xff);
+                    }
+                    index = Palette.to256(value);
+                }
+                if (index >= 16 && mode == ColorMode.ANSI16) {
+                    index = Palette.TO_16[index];
+                }
+                if (index < 16) {
+                    int code = index < 8 ? 30 + index : 90 + index - 8;
+                    return Collections.singletonList(bg ? code + 10 : code);
+                }
+                return Arrays.asList(bg ? BG : FG, 5, index);
             }
+        }
 
-            public String toString() {
-                return esc(mods);
+        /**
+         * Lookup tables for downsampling colors, built once
+         */
+        static class Palette {
+            /**
+             * rgb values of the xterm 256 color palette
+             */
+            static final int[] RGB = new int[256];
+            /**
+             * nearest basic color for each palette index
+             */
+            static final byte[] TO_16 = new byte[256];
+            /**
+             * nearest color cube level for each component value
+             */
+            static final byte[] CUBE = new byte[256];
+            /**
+             * nearest gray ramp step for each component value
+             */
+            static final byte[] GRAY = new byte[256];
+            static final int[] CUBE_LEVELS = {0, 95, 135, 175, 215, 255};
+
+            static {
+                int[] basic = {
+                        0x000000, 0x800000, 0x008000, 0x808000, 0x000080, 0x800080, 0x008080, 0xc0c0c0,
+                        0x808080, 0xff0000, 0x00ff00, 0xffff00, 0x0000ff, 0xff00ff, 0x00ffff, 0xffffff
+                };
+                System.arraycopy(basic, 0, RGB, 0, 16);
+                for (int i = 0; i < 216; i++) {
+                    RGB[16 + i] = CUBE_LEVELS[i / 36] << 16 | CUBE_LEVELS[(i / 6) % 6] << 8 | CUBE_LEVELS[i % 6];
+                }
+                for (int i = 0; i < 24; i++) {
+                    int level = 8 + 10 * i;
+                    RGB[232 + i] = level << 16 | level << 8 | level;
+                }
+                for (int i = 0; i < 256; i++) {
+                    TO_16[i] = (byte) (i < 16 ? i : nearest(RGB[i], 16));
+                    int level = 0;
+                    for (int l = 1; l < CUBE_LEVELS.length; l++) {
+                        if (Math.abs(CUBE_LEVELS[l] - i) < Math.abs(CUBE_LEVELS[level] - i)) {
+                            level = l;
+                        }
+                    }
+                    CUBE[i] = (byte) level;
+                    GRAY[i] = (byte) Math.max(0, Math.min(23, Math.round((i - 8) / 10f)));
+                }
+            }
+
+            private static int nearest(int rgb, int count) {
+                int best = 0;
+                for (int i = 1; i < count; i++) {
+                    if (distance(rgb, RGB[i]) < distance(rgb, RGB[best])) {
+                        best = i;
+                    }
+                }
+                return best;
+            }
+
+            static int distance(int rgb1, int rgb2) {
+                int r = ((rgb1 >> 16) & 0xff) - ((rgb2 >> 16) & 0xff);
+                int g = ((rgb1 >> 8) & 0xff) - ((rgb2 >> 8) & 0xff);
+                int b = (rgb1 & 0xff) - (rgb2 & 0xff);
+                return r * r + g * g + b * b;
+            }
+
+            /**
+             * @return nearest color cube or gray ramp index for a 24-bit rgb value
+             */
+            static int to256(int rgb) {
+                int r = (rgb >> 16) & 0xff;
+                int g = (rgb >> 8) & 0xff;
+                int b = rgb & 0xff;
+                int cube = rgb(CUBE[r], CUBE[g], CUBE[b]);
+                int gray = 232 + GRAY[(r + g + b) / 3];
+                return distance(rgb, RGB[cube]) <= distance(rgb, RGB[gray]) ? cube : gray;
             }
         }
 
         static Map<String, Color> cols = new HashMap<>();
 
         static {
-            cols.put("black", new Color(30));
-            cols.put("bg-black", new Color(40));
-            cols.put("brightblack", new Color(90));
-            cols.put("bg-brightblack", new Color(100));
-            cols.put("red", new Color(31));
-            cols.put("bg-red", new Color(41));
-            cols.put("brightred", new Color(91));
-            cols.put("bg-brightred", new Color(101));
-            cols.put("orange", new Color(FG, 5, rgb(5, 2, 0)));
-            cols.put("bg-orange", new Color(BG, 5, rgb(5, 2, 0)));
-            cols.put("indigo", new Color(FG, 5, rgb(2, 0, 2)));
-            cols.put("bg-indigo", new Color(BG, 5, rgb(2, 0, 2)));
-            cols.put("violet", new Color(FG, 5, rgb(4, 0, 5)));
-            cols.put("bg-violet", new Color(BG, 5, rgb(4, 0, 5)));
-            cols.put("green", new Color(32));
-            cols.put("bg-green", new Color(42));
-            cols.put("brightgreen", new Color(92));
-            cols.put("bg-brightgreen", new Color(102));
-            cols.put("yellow", new Color(33));
-            cols.put("bg-yellow", new Color(43));
-            cols.put("brightyellow", new Color(93));
-            cols.put("bg-brightyellow", new Color(103));
-            cols.put("blue", new Color(34));
-            cols.put("bg-blue", new Color(44));
-            cols.put("brightblue", new Color(94));
-            cols.put("bg-brightblue", new Color(104));
-            cols.put("magenta", new Color(35));
-            cols.put("bg-magenta", new Color(45));
-            cols.put("brightmagenta", new Color(95));
-            cols.put("bg-brightmagenta", new Color(105));
-            cols.put("cyan", new Color(36));
-            cols.put("bg-cyan", new Color(46));
-            cols.put("brightcyan", new Color(96));
-            cols.put("bg-brightcyan", new Color(106));
-            cols.put("white", new Color(37));
-            cols.put("bg-white", new Color(47));
-            cols.put("brightwhite", new Color(97));
-            cols.put("bg-brightwhite", new Color(107));
-
-            cols.put("gray", new Color(FG, 5, rgb(1, 1, 1)));
-            cols.put("bg-gray", new Color(BG, 5, rgb(1, 1, 1)));
-        }
-
-
-        static String colorize(String text, String color) {
-            StringBuilder sb = new StringBuilder();
-            if (null == getColor(color)) {
+            cols.put("black", Color.indexed(0));
+            cols.put("brightblack", Color.indexed(8));
+            cols.put("red", Color.indexed(1));
+            cols.put("brightred", Color.indexed(9));
+            cols.put("orange", Color.indexed(rgb(5, 2, 0)));
+            cols.put("indigo", Color.indexed(rgb(2, 0, 2)));
+            cols.put("violet", Color.indexed(rgb(4, 0, 5)));
+            cols.put("green", Color.indexed(2));
+            cols.put("brightgreen", Color.indexed(10));
+            cols.put("yellow", Color.indexed(3));
+            cols.put("brightyellow", Color.indexed(11));
+            cols.put("blue", Color.indexed(4));
+            cols.put("brightblue", Color.indexed(12));
+            cols.put("magenta", Color.indexed(5));
+            cols.put("brightmagenta", Color.indexed(13));
+            cols.put("cyan", Color.indexed(6));
+            cols.put("brightcyan", Color.indexed(14));
+            cols.put("white", Color.indexed(7));
+            cols.put("brightwhite", Color.indexed(15));
+
+            cols.put("gray", Color.indexed(rgb(1, 1, 1)));
+        }
+
+        /**
+         * @param text   text
+         * @param escape color escape sequence, or null
+         * @return the text wrapped in the color escape sequence and a reset
+         */
+        static String colorize(String text, String escape) {
+            if (null == escape) {
                 return text;
             }
-            sb.append(getColor(color));
-
-            sb.append(text);
-            sb.append(reset);
-            return sb.toString();
+            return escape + text + reset;
         }
 
-        static Pattern colbase = Pattern.compile("(?<bold>bold-)?(?<color>[a-z]+)");
-        static Pattern
-                col16 =
-                Pattern.compile("(?<bold>bold-)?(?<bg>bg-)?(?<r>\\d{1,2}),(?<g>\\d{1,2}),(?<b>\\d{1,2})");
-        private static String getColor(final String color) {
-            Color val = cols.get(color);
-            if (val != null) {
-                return val.toString();
+        static Pattern colspec = Pattern.compile(
+                "(?<bold>bold-)?(?<bg>bg-)?"
+                + "(?:(?<color>[a-z]+)|(?<r>\\d{1,2}),(?<g>\\d{1,2}),(?<b>\\d{1,2})|#(?<hex>[0-9a-fA-F]{6}))"
+        );
+
+        /**
+         * Resolve a color spec to its escape sequence. A spec is a color name, a "r,g,b" 6x6x6 color cube value,
+         * or a "#rrggbb" value, optionally prefixed with "bold-" and/or "bg-".
+         *
+         * @param color color spec
+         * @param mode  color mode to render for
+         * @return the escape sequence, or null if the color is not valid or the mode is NONE
+         */
+        static String getColor(final String color, final ColorMode mode) {
+            Matcher matcher = colspec.matcher(color.trim().toLowerCase());
+            if (mode == ColorMode.NONE || !matcher.matches()) {
+                return null;
             }
-            Matcher matcher1 = colbase.matcher(color);
-            if (matcher1.matches()) {
-                String colgroup = matcher1.group("color");
-                boolean bold = matcher1.group("bold") != null;
-                Color color1 = cols.get(colgroup);
-                if (color1 != null) {
-                    return color1.mods(1).toString();
-                }
+            Color value;
+            if (matcher.group("color") != null) {
+                value = cols.get(matcher.group("color"));
+            } else if (matcher.group("hex") != null) {
+                value = Color.rgb(Integer.parseInt(matcher.group("hex"), 16));
+            } else {
+                int r = Integer.parseInt(matcher.group("r"));
+                int g = Integer.parseInt(matcher.group("g"));
+                int b = Integer.parseInt(matcher.group("b"));
+                value = r < 6 && g < 6 && b < 6 ? Color.indexed(rgb(r, g, b)) : null;
+            }
+            if (null == value) {
+                return null;
+            }
+            List<Integer> params = new ArrayList<>();
+            if (matcher.group("bold") != null) {
+                params.add(1);
             }
-            //256 color
-            Matcher matcher = col16.matcher(color);
-            if (matcher.matches()) {
-                if (matcher.group("bg") != null) {
-                    return new Color(BG, 5, rgb(
-                            Integer.parseInt(matcher.group("r")),
-                            Integer.parseInt(matcher.group("g")),
-                            Integer.parseInt(matcher.group("b"))
-                    )).toString();
+            params.addAll(value.params(matcher.group("bg") != null, mode));
+            return esc(params.toArray(new Integer[0]));
+        }
+
+        /**
+         * Resolve all colors to escape sequences, so that no color parsing is done while rendering
+         *
+         * @param colors map of style name to color spec
+         * @param mode   color mode
+         * @return map of lowercase style name to escape sequence, omitting invalid colors
+         */
+        static Map<String, String> compile(final Map<String, String> colors, final ColorMode mode) {
+            Map<String, String> styles = new HashMap<>();
+            colors.forEach((name, color) -> {
+                String escape = getColor(color, mode);
+                if (null != escape) {
+                    styles.put(name.toLowerCase(), escape);
                 }
+            });
+            return styles;
+        }
 
-                return new Color(FG, 5, rgb(
-                        Integer.parseInt(matcher.group("r")),
-                        Integer.parseInt(matcher.group("g")),
-                        Integer.parseInt(matcher.group("b"))
-                )).toString();
+        /**
+         * @return true if the color spec is valid
+         */
+        static boolean isValid(final String color) {
+            return null != getColor(color, ColorMode.ANSI256);
+        }
 
+        static String beginColor(String escape) {
+            if (null == escape) {
+                return "";
             }
-            return null;
+            return escape;
         }
 
-        static String beginColor(String color) {
-            if (null == getColor(color)) {
+        static String endColor(String escape) {
+            if (null == escape) {
                 return "";
             }
-            return getColor(color);
+            return reset;
         }
     }
 }
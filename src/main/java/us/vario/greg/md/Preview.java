@@ -0,0 +1,460 @@
+package us.vario.greg.md;
+
+import org.commonmark.node.Node;
+import org.commonmark.parser.Parser;
+import org.commonmark.renderer.html.HtmlRenderer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Renders a preview of a file: the first or last N blocks, limited to a number of output lines or bytes.
+ * <p>
+ * The head of the file is read and parsed in chunks split at block boundaries, and reading stops as soon as the budget
+ * is met. The tail is found by scanning backward from the end of the file for block boundaries, so only the end of the
+ * file is read. A boundary is only used if the fenced code and HTML blocks after it are closed again, so the tail does
+ * not start within a block that may contain blank lines. Since chunks are parsed separately, link reference definitions
+ * only apply within their own chunk.
+ */
+class Preview {
+    static final int TAIL_WINDOW = 8192;
+    private static final Pattern FENCE = Pattern.compile("^ {0,3}(`{3,}|~{3,})(.*)$");
+    private static final Pattern LIST_ITEM = Pattern.compile("^([*+-]|\\d{1,9}[.)])(\\s.*)?$");
+    private static final Pattern RAW_TAG = Pattern.compile("<(script|pre|style)(?=[\\s>]|$)", Pattern.CASE_INSENSITIVE);
+
+    private final Parser parser;
+    private final HtmlRenderer renderer;
+    private final int head;
+    private final int tail;
+    private final long lines;
+    private final long maxBytes;
+
+    /**
+     * @param head     number of blocks from the start, or -1
+     * @param tail     number of blocks from the end, or -1
+     * @param lines    maximum output lines, or -1
+     * @param maxBytes maximum output bytes, or -1
+     */
+    Preview(
+            final Parser parser,
+            final HtmlRenderer renderer,
+            final int head,
+            final int tail,
+            final long lines,
+            final long maxBytes
+    )
+    {
+        this.parser = parser;
+        this.renderer = renderer;
+        this.head = head;
+        this.tail = tail;
+        this.lines = lines;
+        this.maxBytes = maxBytes;
+    }
+
+    void render(final File file, final Appendable out) throws IOException {
+        LimitedOutput limited = new LimitedOutput(out, lines, maxBytes);
+        try {
+            if (tail >= 0) {
+                renderTail(file, limited);
+            } else {
+                renderHead(file, limited);
+            }
+        } catch (LimitedOutput.Reached ignored) {
+            //output budget was met
+        }
+    }
+
+    private void renderHead(final File file, final Appendable out) throws IOException {
+        int remaining = head >= 0 ? head : Integer.MAX_VALUE;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file)))) {
+            BlockChunks chunks = new BlockChunks(reader);
+            String chunk;
+            while (remaining > 0 && null != (chunk = chunks.next())) {
+                Node document = parser.parse(chunk);
+                remaining -= keepFirst(document, remaining);
+                renderer.render(document, out);
+            }
+        }
+    }
+
+    private void renderTail(final File file, final Appendable out) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long window = TAIL_WINDOW;
+            int needed = tail;
+            while (true) {
+                long start = Math.max(0, size - window);
+                byte[] bytes = new byte[(int) (size - start)];
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) >= 0) {
+                    //read fully
+                }
+                int offset = findBoundary(bytes, needed, start == 0);
+                if (offset < 0 && start > 0) {
+                    window *= 2;
+                    continue;
+                }
+                offset = Math.max(offset, 0);
+                Node document = parser.parse(new String(bytes, offset, bytes.length - offset, Charset.defaultCharset()));
+                int blocks = countBlocks(document);
+                if (blocks >= tail || offset == 0) {
+                    for (int i = blocks - tail; i > 0; i--) {
+                        document.getFirstChild().unlink();
+                    }
+                    renderer.render(document, out);
+                    return;
+                }
+                //some boundaries were not top-level blocks
+                needed += tail - blocks;
+            }
+        }
+    }
+
+    /**
+     * Unlink all but the first top-level blocks
+     *
+     * @return number of blocks kept
+     */
+    static int keepFirst(final Node document, final int count) {
+        int kept = 0;
+        Node node = document.getFirstChild();
+        while (null != node) {
+            Node next = node.getNext();
+            if (kept < count) {
+                kept++;
+            } else {
+                node.unlink();
+            }
+            node = next;
+        }
+        return kept;
+    }
+
+    static int countBlocks(final Node document) {
+        int count = 0;
+        for (Node node = document.getFirstChild(); null != node; node = node.getNext()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Scan backward for the start of a block following a blank line
+     *
+     * @param bytes     end of the file
+     * @param count     number of boundaries to find
+     * @param fileStart true if the bytes start at the beginning of the file
+     * @return offset of the line starting the count-th boundary from the end, or -1 if not found
+     */
+    static int findBoundary(final byte[] bytes, final int count, final boolean fileStart) {
+        int found = 0;
+        int end = bytes.length;
+        int rejected = -1;
+        for (int p = bytes.length - 1; p > 0; p--) {
+            if (bytes[p - 1] != '\n' || isSpace(bytes[p])) {
+                continue;
+            }
+            int q = p - 2;
+            boolean blank = true;
+            while (q >= 0 && bytes[q] != '\n') {
+                if (!isSpace(bytes[q])) {
+                    blank = false;
+                    break;
+                }
+                q--;
+            }
+            if (!blank || q < 0 && !fileStart || !startsBlock(firstChars(bytes, p))) {
+                continue;
+            }
+            if (!endsOutsideRawBlock(bytes, p, end, rejected)) {
+                //within fenced code or an HTML block
+                rejected = p;
+                continue;
+            }
+            end = p;
+            rejected = -1;
+            if (++found == count) {
+                return p;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Track fenced code and HTML blocks forward from a line assumed to be outside of them. A line which would end an
+     * HTML block that is not open means that the assumption may be wrong, so the range is rejected.
+     *
+     * @param from     start of a line
+     * @param to       end of the range
+     * @param rejected start of a later line known to leave a block open at the end, or -1
+     * @return true if the range ends outside of fenced code and HTML blocks
+     */
+    static boolean endsOutsideRawBlock(final byte[] bytes, final int from, final int to, final int rejected) {
+        RawBlocks blocks = new RawBlocks();
+        int p = from;
+        while (p < to) {
+            if (p == rejected && !blocks.isOpen()) {
+                return false;
+            }
+            int eol = p;
+            while (eol < to && bytes[eol] != '\n') {
+                eol++;
+            }
+            int end = eol > p && bytes[eol - 1] == '\r' ? eol - 1 : eol;
+            //markers are ASCII, so any single byte charset will do
+            blocks.track(new String(bytes, p, end - p, StandardCharsets.ISO_8859_1));
+            if (blocks.unopenedEnd) {
+                //the range may start within an HTML block
+                return false;
+            }
+            p = eol + 1;
+        }
+        return !blocks.isOpen();
+    }
+
+    private static boolean isSpace(final byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private static String firstChars(final byte[] bytes, final int start) {
+        int end = start;
+        while (end < bytes.length && end - start < 16 && bytes[end] != '\n') {
+            end++;
+        }
+        return new String(bytes, start, end - start, Charset.defaultCharset());
+    }
+
+    /**
+     * @return true if a line following a blank line starts a new top-level block, which is not part of a list
+     */
+    static boolean startsBlock(final String line) {
+        return !line.isEmpty()
+               && line.charAt(0) != ' '
+               && line.charAt(0) != '\t'
+               && !LIST_ITEM.matcher(line).matches();
+    }
+
+    /**
+     * Reads markdown in chunks ending at top-level block boundaries, outside of fenced code and HTML blocks
+     */
+    static class BlockChunks {
+        final BufferedReader reader;
+        final RawBlocks blocks = new RawBlocks();
+        String pending;
+        boolean prevBlank;
+
+        BlockChunks(final BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * @return the next chunk, or null at the end of input
+         */
+        String next() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            if (null != pending) {
+                sb.append(pending).append('\n');
+                pending = null;
+            }
+            String line;
+            while (null != (line = reader.readLine())) {
+                boolean boundary = !blocks.isOpen() && prevBlank && sb.length() > 0 && startsBlock(line);
+                prevBlank = !blocks.isOpen() && line.trim().isEmpty();
+                blocks.track(line);
+                if (boundary) {
+                    pending = line;
+                    return sb.toString();
+                }
+                sb.append(line).append('\n');
+            }
+            return sb.length() > 0 ? sb.toString() : null;
+        }
+    }
+
+    /**
+     * Tracks the blocks which may contain blank lines, line by line: fenced code, and the HTML blocks of CommonMark
+     * types 1 to 5 (raw tags, comments, processing instructions, declarations and CDATA)
+     */
+    static class RawBlocks {
+        static final String[] HTML_ENDS = {"-->", "?>", "]]>", "</script>", "</pre>", "</style>"};
+        String fence;
+        /**
+         * Lowercase text which ends the open HTML block
+         */
+        String htmlEnd;
+        /**
+         * True once a line outside of blocks contains the end of an HTML block. Declarations, which end at any '>', are
+         * not counted.
+         */
+        boolean unopenedEnd;
+
+        boolean isOpen() {
+            return null != fence || null != htmlEnd;
+        }
+
+        void track(final String line) {
+            if (null != htmlEnd) {
+                if (line.toLowerCase(Locale.ROOT).contains(htmlEnd)) {
+                    htmlEnd = null;
+                }
+                return;
+            }
+            String trimmed = line.trim();
+            if (null == fence && trimmed.startsWith("<") && !line.startsWith("    ")) {
+                String end = htmlBlockEnd(trimmed);
+                if (null != end) {
+                    if (!trimmed.toLowerCase(Locale.ROOT).contains(end)) {
+                        htmlEnd = end;
+                    }
+                    return;
+                }
+            }
+            if (null == fence && !unopenedEnd) {
+                String lower = line.toLowerCase(Locale.ROOT);
+                for (String end : HTML_ENDS) {
+                    unopenedEnd |= lower.contains(end);
+                }
+            }
+            if (!trimmed.startsWith("```") && !trimmed.startsWith("~~~")) {
+                return;
+            }
+            Matcher matcher = FENCE.matcher(line);
+            if (!matcher.matches()) {
+                return;
+            }
+            String marker = matcher.group(1);
+            if (null == fence) {
+                if (marker.charAt(0) != '`' || !matcher.group(2).contains("`")) {
+                    fence = marker;
+                }
+            } else if (marker.charAt(0) == fence.charAt(0)
+                       && marker.length() >= fence.length()
+                       && matcher.group(2).trim().isEmpty()) {
+                fence = null;
+            }
+        }
+
+        /**
+         * @param start a line without leading spaces, starting with '<'
+         * @return the text ending the HTML block of type 1 to 5 started by the line, or null if it starts none
+         */
+        static String htmlBlockEnd(final String start) {
+            if (start.startsWith("<!--")) {
+                return "-->";
+            }
+            if (start.startsWith("<?")) {
+                return "?>";
+            }
+            if (start.startsWith("<![CDATA[")) {
+                return "]]>";
+            }
+            if (start.startsWith("<!") && start.length() > 2 && start.charAt(2) >= 'A' && start.charAt(2) <= 'Z') {
+                return ">";
+            }
+            Matcher matcher = RAW_TAG.matcher(start);
+            return matcher.lookingAt() ? "</" + matcher.group(1).toLowerCase(Locale.ROOT) + ">" : null;
+        }
+    }
+
+    /**
+     * Passes output through until a line or byte budget is met, then throws {@link Reached}. Escape sequences are
+     * not split, and a reset is written if the output stops within a color.
+     */
+    static class LimitedOutput
+            implements Appendable
+    {
+        static final int RESET_BYTES = Main.Ansi.reset.length();
+        final Appendable out;
+        final long maxLines;
+        final long maxBytes;
+        long lines;
+        long bytes;
+        boolean colored;
+
+        LimitedOutput(final Appendable out, final long maxLines, final long maxBytes) {
+            this.out = out;
+            this.maxLines = maxLines;
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public Appendable append(final CharSequence csq) throws IOException {
+            return append(csq, 0, csq.length());
+        }
+
+        @Override
+        public Appendable append(final CharSequence csq, final int start, final int end) throws IOException {
+            for (int i = start; i < end; i++) {
+                char c = csq.charAt(i);
+                if (c == '\u001B') {
+                    int seqEnd = i;
+                    while (seqEnd < end - 1 && csq.charAt(seqEnd) != 'm') {
+                        seqEnd++;
+                    }
+                    boolean reset = Main.Ansi.reset.contentEquals(csq.subSequence(i, seqEnd + 1));
+                    if (!fits(seqEnd + 1 - i, reset ? 0 : RESET_BYTES)) {
+                        throw stop(csq, start, i);
+                    }
+                    colored = !reset;
+                    i = seqEnd;
+                    continue;
+                }
+                int size = c < 0x80 ? 1 : c < 0x800 ? 2 : Character.isHighSurrogate(c) ? 4
+                                                          : Character.isLowSurrogate(c) ? 0 : 3;
+                if (!fits(size, colored ? RESET_BYTES : 0)) {
+                    throw stop(csq, start, i);
+                }
+                if (c == '\n' && maxLines >= 0 && ++lines >= maxLines) {
+                    throw stop(csq, start, i + 1);
+                }
+            }
+            out.append(csq, start, end);
+            return this;
+        }
+
+        @Override
+        public Appendable append(final char c) throws IOException {
+            return append(String.valueOf(c));
+        }
+
+        /**
+         * @param reserve bytes to keep available for a reset
+         */
+        private boolean fits(final int size, final int reserve) {
+            if (maxBytes >= 0 && bytes + size + reserve > maxBytes) {
+                return false;
+            }
+            bytes += size;
+            return true;
+        }
+
+        private Reached stop(final CharSequence csq, final int start, final int end) throws IOException {
+            out.append(csq, start, end);
+            if (colored) {
+                out.append(Main.Ansi.reset);
+            }
+            return new Reached();
+        }
+
+        /**
+         * Thrown when the output budget is met
+         */
+        static class Reached
+                extends RuntimeException
+        {
+            private static final long serialVersionUID = 1L;
+
+            Reached() {
+                super("output limit reached", null, false, false);
+            }
+        }
+    }
+}
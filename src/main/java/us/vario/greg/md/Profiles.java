@@ -0,0 +1,322 @@
+package us.vario.greg.md;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.CodeSource;
+import java.util.*;
+
+/**
+ * Loads color profiles, from user profile files in the config dir ({@code ~/.config/mdcat/NAME.properties}), or the
+ * bundled {@code md-profile-NAME.properties}. A profile can inherit from another with {@code extends=NAME}.
+ * <p>
+ * The resolved profile is compiled to the escape sequence for each style, and cached in a small binary file along with
+ * the path and modification time of each source, so later runs can load it without parsing.
+ */
+class Profiles {
+    static final String EXTENDS = "extends";
+    private static final int MAGIC = 0x4d445448;
+    private static final int VERSION = 2;
+    private static final long MISSING = -1;
+
+    private final Path configDir;
+    private final Path cacheDir;
+
+    Profiles(final Map<String, String> env) {
+        Path home = Paths.get(System.getProperty("user.home"));
+        this.configDir = dir(env.get("XDG_CONFIG_HOME"), home.resolve(".config")).resolve("mdcat");
+        this.cacheDir = cacheDir(env);
+    }
+
+    /**
+     * @return the cache dir, {@code ~/.cache/mdcat} or in XDG_CACHE_HOME
+     */
+    static Path cacheDir(final Map<String, String> env) {
+        Path home = Paths.get(System.getProperty("user.home"));
+        return dir(env.get("XDG_CACHE_HOME"), home.resolve(".cache")).resolve("mdcat");
+    }
+
+    private static Path dir(final String value, final Path defaultPath) {
+        return null != value && !value.isEmpty() ? Paths.get(value) : defaultPath;
+    }
+
+    /**
+     * Load the compiled profile
+     *
+     * @param profile  profile name, or path to a properties file
+     * @param defaults default colors, overridden by the profile
+     * @param mode     color mode
+     * @return map of style name to escape sequence
+     * @throws IOException              if a profile file cannot be read
+     * @throws IllegalArgumentException if the profile is not found, or contains an invalid color
+     */
+    Map<String, String> load(final String profile, final Map<String, String> defaults, final Main.Ansi.ColorMode mode)
+            throws IOException
+    {
+        String name = isPath(profile) ? Paths.get(profile).toAbsolutePath().toString() : profile;
+        //names which only differ in replaced chars share a file name, so the name is also checked in the file
+        Path cacheFile = cacheDir.resolve(name.replaceAll("[^A-Za-z0-9_.-]", "_")
+                                          + "-" + Integer.toHexString(name.hashCode()) + "-" + mode + ".theme");
+        int defaultsHash = defaults.hashCode();
+        Map<String, String> cached = readCache(cacheFile, name, defaultsHash, mode);
+        if (null != cached) {
+            return cached;
+        }
+
+        List<Source> sources = new ArrayList<>();
+        Map<String, String> colors = new HashMap<>(defaults);
+        colors.putAll(resolve(name, false, new HashSet<>(), sources));
+
+        Map<String, String> styles = compile(colors, mode, "profile " + name);
+        writeCache(cacheFile, name, defaultsHash, mode, sources, styles);
+        return styles;
+    }
+
+    /**
+     * Compile colors to escape sequences
+     *
+     * @param colors map of style name to color
+     * @param mode   color mode
+     * @param source description of the colors source, for errors
+     * @throws IllegalArgumentException if a color is invalid
+     */
+    static Map<String, String> compile(
+            final Map<String, String> colors,
+            final Main.Ansi.ColorMode mode,
+            final String source
+    )
+    {
+        validate(colors, source);
+        return Main.Ansi.compile(colors, mode);
+    }
+
+    /**
+     * @throws IllegalArgumentException if a color is invalid
+     */
+    static void validate(final Map<String, String> colors, final String source) {
+        List<String> invalid = new ArrayList<>();
+        colors.forEach((style, color) -> {
+            if (!Main.Ansi.isValid(color)) {
+                invalid.add(style + "=" + color);
+            }
+        });
+        if (!invalid.isEmpty()) {
+            Collections.sort(invalid);
+            throw new IllegalArgumentException("Invalid color in " + source + ": " + String.join(", ", invalid));
+        }
+    }
+
+    /**
+     * Resolve the colors of the profile and its parents
+     *
+     * @param name        profile name or path
+     * @param bundledOnly if true, only look for a bundled profile
+     * @param seen        names already resolved, to detect cycles
+     * @param sources     collects the source files checked
+     */
+    private Map<String, String> resolve(
+            final String name,
+            final boolean bundledOnly,
+            final Set<String> seen,
+            final List<Source> sources
+    )
+            throws IOException
+    {
+        if (!seen.add(name + ":" + bundledOnly)) {
+            throw new IllegalArgumentException("Profile extends itself: " + name);
+        }
+        Properties props = new Properties();
+        String location;
+        Path file = bundledOnly ? null : userProfile(name);
+        if (null != file) {
+            sources.add(Source.of(file));
+        }
+        if (null != file && Files.isRegularFile(file)) {
+            location = file.toString();
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                props.load(reader);
+            }
+        } else {
+            String resource = "md-profile-" + name.toLowerCase() + ".properties";
+            location = resource;
+            try (InputStream resourceAsStream = Main.class.getClassLoader().getResourceAsStream(resource)) {
+                if (null == resourceAsStream) {
+                    throw new IllegalArgumentException(
+                            "no profile found: " + name + " (" + (null != file ? file + ", " : "") + resource + ")"
+                    );
+                }
+                props.load(resourceAsStream);
+            }
+            Path codeSource = codeSource();
+            if (null != codeSource) {
+                sources.add(Source.of(codeSource));
+            }
+        }
+
+        Map<String, String> map = new HashMap<>();
+        String parent = props.getProperty(EXTENDS);
+        if (null != parent) {
+            //a user profile extending the same name inherits the bundled profile
+            boolean parentBundled = parent.equals(name) && !bundledOnly;
+            try {
+                map.putAll(resolve(parent, parentBundled, seen, sources));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(e.getMessage() + ", extended by " + location, e);
+            }
+        }
+        Map<String, String> own = new HashMap<>();
+        for (String key : props.stringPropertyNames()) {
+            if (!key.equals(EXTENDS)) {
+                own.put(key.toLowerCase(), props.getProperty(key));
+            }
+        }
+        validate(own, location);
+        map.putAll(own);
+        return map;
+    }
+
+    /**
+     * @return the profile file for a name, or null if the name is not a valid file name
+     */
+    private Path userProfile(final String name) {
+        try {
+            if (isPath(name)) {
+                return Paths.get(name);
+            }
+            return configDir.resolve(name + ".properties");
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    private static boolean isPath(final String name) {
+        return name.endsWith(".properties");
+    }
+
+    /**
+     * @return the jar or directory containing the bundled profiles
+     */
+    static Path codeSource() {
+        CodeSource codeSource = Main.class.getProtectionDomain().getCodeSource();
+        if (null == codeSource || null == codeSource.getLocation()) {
+            return null;
+        }
+        try {
+            return Paths.get(codeSource.getLocation().toURI());
+        } catch (URISyntaxException | IllegalArgumentException | FileSystemNotFoundException e) {
+            return null;
+        }
+    }
+
+    private Map<String, String> readCache(
+            final Path cacheFile,
+            final String name,
+            final int defaultsHash,
+            final Main.Ansi.ColorMode mode
+    )
+    {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(cacheFile);
+        } catch (IOException e) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (in.readInt() != MAGIC
+                || in.readInt() != VERSION
+                || !in.readUTF().equals(name)
+                || in.readInt() != defaultsHash
+                || !in.readUTF().equals(mode.name())) {
+                return null;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Source source = new Source(in.readUTF(), in.readLong());
+                if (!source.isCurrent()) {
+                    return null;
+                }
+            }
+            count = in.readInt();
+            Map<String, String> styles = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                styles.put(in.readUTF(), in.readUTF());
+            }
+            return styles;
+        } catch (IOException | InvalidPathException e) {
+            return null;
+        }
+    }
+
+    private void writeCache(
+            final Path cacheFile,
+            final String name,
+            final int defaultsHash,
+            final Main.Ansi.ColorMode mode,
+            final List<Source> sources,
+            final Map<String, String> styles
+    )
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(name);
+            out.writeInt(defaultsHash);
+            out.writeUTF(mode.name());
+            out.writeInt(sources.size());
+            for (Source source : sources) {
+                out.writeUTF(source.path);
+                out.writeLong(source.modified);
+            }
+            out.writeInt(styles.size());
+            for (Map.Entry<String, String> entry : styles.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            Files.createDirectories(cacheDir);
+            Path temp = Files.createTempFile(cacheDir, cacheFile.getFileName().toString(), ".tmp");
+            try {
+                Files.write(temp, bytes.toByteArray());
+                Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException ignored) {
+            //the cache is optional, the profile is compiled again next time
+        }
+    }
+
+    /**
+     * A file checked when resolving a profile, and its modification time, or {@link #MISSING} if it did not exist
+     */
+    private static class Source {
+        final String path;
+        final long modified;
+
+        Source(final String path, final long modified) {
+            this.path = path;
+            this.modified = modified;
+        }
+
+        static Source of(final Path path) {
+            return new Source(path.toString(), modified(path));
+        }
+
+        static long modified(final Path path) {
+            try {
+                return Files.getLastModifiedTime(path).toMillis();
+            } catch (IOException e) {
+                return MISSING;
+            }
+        }
+
+        boolean isCurrent() {
+            return modified(Paths.get(path)) == modified;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package us.vario.greg.md;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Caches rendered output files, keyed by the input path and the render options. An entry holds a small header with
+ * the size and modification time of the input, followed by the rendered bytes, which are copied to an output file
+ * with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+ */
+class RenderCache {
+    private static final int MAGIC = 0x4d44524e;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    private final Path dir;
+    private final String signature;
+
+    /**
+     * @param dir       cache directory
+     * @param signature describes the render options, entries are only used for the same signature
+     */
+    RenderCache(final Path dir, final String signature) {
+        this.dir = dir;
+        this.signature = signature;
+    }
+
+    /**
+     * Size and modification time of an input file
+     */
+    static class Stamp {
+        final long size;
+        final long modified;
+
+        Stamp(final Path input) throws IOException {
+            this.size = Files.size(input);
+            this.modified = Files.getLastModifiedTime(input).toMillis();
+        }
+    }
+
+    /**
+     * Copy the cached output for the input to the target, if it is up to date
+     *
+     * @return true if the target was written
+     */
+    boolean copyTo(final Path input, final Stamp stamp, final Path target) {
+        Path entry = entry(input);
+        if (null == entry || !Files.isRegularFile(entry)) {
+            return false;
+        }
+        try (FileChannel in = FileChannel.open(entry, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && in.read(header) >= 0) {
+                //read fully
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE
+                || header.getInt() != MAGIC
+                || header.getInt() != VERSION
+                || header.getLong() != stamp.size
+                || header.getLong() != stamp.modified) {
+                return false;
+            }
+            try (FileChannel out = FileChannel.open(
+                    target,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING
+            )) {
+                transfer(in, HEADER_SIZE, out);
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Store a rendered output file for the input
+     */
+    void store(final Path input, final Stamp stamp, final Path rendered) {
+        Path entry = entry(input);
+        if (null == entry) {
+            return;
+        }
+        try {
+            Files.createDirectories(dir);
+            Path temp = Files.createTempFile(dir, entry.getFileName().toString(), ".tmp");
+            try {
+                try (
+                        FileChannel in = FileChannel.open(rendered, StandardOpenOption.READ);
+                        FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)
+                ) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putInt(MAGIC).putInt(VERSION).putLong(stamp.size).putLong(stamp.modified).flip();
+                    while (header.hasRemaining()) {
+                        out.write(header);
+                    }
+                    transfer(in, 0, out);
+                }
+                Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException ignored) {
+            //the cache is optional, the file is rendered again next time
+        }
+    }
+
+    private static void transfer(final FileChannel in, final long start, final FileChannel out) throws IOException {
+        long position = start;
+        long end = in.size();
+        while (position < end) {
+            position += in.transferTo(position, end - position, out);
+        }
+    }
+
+    /**
+     * @return the cache entry for the input, or null if it cannot be determined
+     */
+    private Path entry(final Path input) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(input.toRealPath().toString().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(signature.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return dir.resolve(sb.toString() + ".out");
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return null;
+        }
+    }
+}
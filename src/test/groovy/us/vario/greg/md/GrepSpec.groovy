@@ -0,0 +1,86 @@
+package us.vario.greg.md
+
+import org.commonmark.parser.Parser
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.charset.StandardCharsets
+import java.util.regex.Pattern
+
+class GrepSpec extends Specification {
+
+    private static Grep grep(String pattern) {
+        new Grep(Pattern.compile(pattern), Parser.builder().build(), { p, o -> null }, null)
+    }
+
+    @Unroll
+    def "prefilter accepts '#source' for '#pattern'"() {
+        expect:
+        grep(pattern).mayMatch(source.getBytes(StandardCharsets.UTF_8))
+
+        where:
+        pattern     | source
+        'foobar'    | 'a **foo**bar b'
+        'foobar'    | '[foo](http://x "t")bar'
+        'foobar'    | '[foo][ref]bar'
+        'foobar'    | 'foo<b>bar</b>'
+        'foobar'    | '`foo`bar'
+        'AT&T'      | 'AT&amp;T'
+        'AT&T'      | 'AT&#38;T'
+        'a_b'       | 'x a_b y'
+        'a_b'       | 'x *a*_b y'
+        'http://x'  | '<http://x>'
+        'caf\u00e9' | 'caf&eacute;'
+    }
+
+    def "prefilter rejects content without the literal"() {
+        expect:
+        !grep('foobar').mayMatch('foo bar, **foo** bar'.getBytes(StandardCharsets.UTF_8))
+    }
+
+    @Unroll
+    def "'#pattern' requires '#literal'"() {
+        expect:
+        Grep.requiredLiteral(pattern) == literal
+
+        where:
+        pattern          | literal
+        'foo-bar'        | 'foo-bar'
+        'a=b'            | 'a=b'
+        '<div>'          | '<div>'
+        '!important'     | '!important'
+        'foo\\.bar'      | 'foo.bar'
+        '^colou?r$'      | 'colo'
+        'fo+bar'         | 'bar'
+        'ab+c'           | 'ab'
+        'x{0,2}yz'       | 'yz'
+        '(ab)+cd'        | 'cd'
+        '[abc]+defg'     | 'defg'
+        '\\d+ items'     | ' items'
+        '\\p{Alpha}tail' | 'tail'
+        '\\Q(a)\\E.b'    | '(a)'
+        '(?:a|b)cc'      | 'cc'
+        'a|bcd'          | null
+        '(?i)abc'        | null
+        '.*'             | null
+    }
+
+    def "regex patterns are prefiltered on their literal"() {
+        expect:
+        grep('fo+bar').mayMatch('a **foo**bar'.getBytes(StandardCharsets.UTF_8))
+        !grep('fo+bar').mayMatch('nothing'.getBytes(StandardCharsets.UTF_8))
+        grep('a|b').mayMatch('nothing'.getBytes(StandardCharsets.UTF_8))
+    }
+
+    def "matches in code are highlighted in html"() {
+        given:
+        Main main = new Main()
+        main.@html = true
+        def renderer = main.createRenderer(Pattern.compile('a-b'), null)
+
+        expect:
+        renderer.render(Parser.builder().build().parse('x `a-b`\n\n```sh\na-b\n```\n')) ==
+                '<p>x <code><mark>a-b</mark></code></p>\n' +
+                '<pre><code class="language-sh"><mark>a-b</mark>\n</code></pre>\n'
+    }
+}
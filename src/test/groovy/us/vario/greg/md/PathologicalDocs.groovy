@@ -0,0 +1,106 @@
+package us.vario.greg.md
+
+/**
+ * Generates synthetic markdown documents which stress the parser and renderers, sized by n
+ */
+class PathologicalDocs {
+
+    /**
+     * Block quotes nested n deep
+     */
+    static String deepQuotes(int n) {
+        '> ' * n + 'quoted *text*\n'
+    }
+
+    /**
+     * Bullet lists nested n deep, on a single line
+     */
+    static String deepLists(int n) {
+        '- ' * n + 'item\n'
+    }
+
+    /**
+     * A tight list of n items
+     */
+    static String hugeList(int n) {
+        StringBuilder sb = new StringBuilder()
+        for (int i = 0; i < n; i++) {
+            sb << '- item ' << i << ' with *emphasis* and `code`\n'
+        }
+        sb.toString()
+    }
+
+    /**
+     * A loose ordered list of n items
+     */
+    static String hugeLooseList(int n) {
+        StringBuilder sb = new StringBuilder()
+        for (int i = 0; i < n; i++) {
+            sb << (i + 1) << '. item ' << i << '\n\n'
+        }
+        sb.toString()
+    }
+
+    /**
+     * Paragraphs with n links and images in total
+     */
+    static String manyLinks(int n) {
+        StringBuilder sb = new StringBuilder()
+        for (int i = 0; i < n; i++) {
+            sb << (i % 2 == 0 ? '[link ' : '![image ') << i << '](http://example.com/' << i << ' "title") '
+            if (i % 10 == 9) {
+                sb << '\n\n'
+            }
+        }
+        sb.toString()
+    }
+
+    /**
+     * A fenced and an indented code block of n lines each
+     */
+    static String giantCode(int n) {
+        StringBuilder sb = new StringBuilder('```\n')
+        for (int i = 0; i < n; i++) {
+            sb << 'fenced line ' << i << ' { *not emphasis* }\n'
+        }
+        sb << '```\n\n'
+        for (int i = 0; i < n; i++) {
+            sb << '    indented line ' << i << '\n'
+        }
+        sb.toString()
+    }
+
+    /**
+     * A single paragraph of n lines
+     */
+    static String longParagraph(int n) {
+        StringBuilder sb = new StringBuilder()
+        for (int i = 0; i < n; i++) {
+            sb << 'line ' << i << ' of **one** paragraph with _emphasis_ and `code`\n'
+        }
+        sb.toString()
+    }
+
+    /**
+     * A paragraph of n link texts with unclosed destinations
+     */
+    static String unclosedLinks(int n) {
+        '[a](' * n + '\n'
+    }
+
+    /**
+     * Generators by name, for data driven specs
+     */
+    static Map<String, Closure<String>> all() {
+        [
+                deepQuotes   : this.&deepQuotes,
+                deepLists    : this.&deepLists,
+                hugeList     : this.&hugeList,
+                hugeLooseList: this.&hugeLooseList,
+                manyLinks    : this.&manyLinks,
+                giantCode    : this.&giantCode,
+                longParagraph: this.&longParagraph,
+                unclosedLinks: this.&unclosedLinks,
+        ]
+    }
+}
@@ -0,0 +1,116 @@
+package us.vario.greg.md
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.charset.StandardCharsets
+
+class PreviewSpec extends Specification {
+
+    private static List<String> chunks(String markdown) {
+        Preview.BlockChunks chunks = new Preview.BlockChunks(new BufferedReader(new StringReader(markdown)))
+        List<String> result = []
+        String chunk
+        while (null != (chunk = chunks.next())) {
+            result << chunk
+        }
+        result
+    }
+
+    /**
+     * @return the text from the count-th boundary from the end, or null if not found
+     */
+    private static String tail(String markdown, int count) {
+        byte[] bytes = markdown.getBytes(StandardCharsets.UTF_8)
+        int offset = Preview.findBoundary(bytes, count, true)
+        offset < 0 ? null : new String(bytes, offset, bytes.length - offset, StandardCharsets.UTF_8)
+    }
+
+    private static String limit(long lines, long bytes, String... parts) {
+        StringBuilder sb = new StringBuilder()
+        Preview.LimitedOutput out = new Preview.LimitedOutput(sb, lines, bytes)
+        try {
+            parts.each { out.append(it) }
+        } catch (Preview.LimitedOutput.Reached ignored) {
+        }
+        sb.toString()
+    }
+
+    def "chunks split at top-level blocks after blank lines"() {
+        expect:
+        chunks('a\nb\n\nc\n\n- d\n\n- e\n\n  f\n') == ['a\nb\n\n', 'c\n\n- d\n\n- e\n\n  f\n']
+    }
+
+    @Unroll
+    def "chunks do not split #name"() {
+        expect:
+        chunks(markdown) == [markdown.substring(0, markdown.indexOf('last')), 'last\n']
+
+        where:
+        name                      | markdown
+        'fenced code'             | '```\n\ncode\n\n```\n\nlast\n'
+        'a longer fence'          | '````\n\n```\n\ncode\n````\n\nlast\n'
+        'comments'                | '<!--\n\ncomment\n-->\n\nlast\n'
+        'raw tags'                | '<PRE class="x">\n\ncode\n</pre>\n\nlast\n'
+        'processing instructions' | '<?php\n\necho 1;\n?>\n\nlast\n'
+        'declarations'            | '<!DOCTYPE\n\nhtml>\n\nlast\n'
+        'CDATA'                   | '<![CDATA[\n\ndata\n]]>\n\nlast\n'
+    }
+
+    def "chunks split after an HTML block closed on its first line"() {
+        expect:
+        chunks('<!-- a -->\n\nb\n') == ['<!-- a -->\n\n', 'b\n']
+    }
+
+    def "boundaries are found backward, passing over list items"() {
+        given:
+        String markdown = 'a\n\nb\n\n- c\n\n  d\n\ne\n'
+
+        expect:
+        tail(markdown, 1) == 'e\n'
+        tail(markdown, 2) == 'b\n\n- c\n\n  d\n\ne\n'
+        tail(markdown, 3) == null
+    }
+
+    @Unroll
+    def "boundaries are not found within #name"() {
+        expect:
+        tail('a\n\n' + block + '\n\nlast\n', 2) == block + '\n\nlast\n'
+
+        where:
+        name          | block
+        'fenced code' | '```\n\ncode\n\n```'
+        'comments'    | '<!--\n\ncomment body\n-->'
+        'raw tags'    | '<script>\n\nx()\n</SCRIPT>'
+        'CDATA'       | '<![CDATA[\n\ndata\n]]>'
+    }
+
+    def "a boundary within fenced code is passed over"() {
+        given:
+        String markdown = '```\n\n<!--\n\n```\n\nlast\n'
+
+        expect:
+        tail(markdown, 1) == 'last\n'
+        tail(markdown, 2) == null
+    }
+
+    def "output stops after the line budget"() {
+        expect:
+        limit(2, -1, 'a\nb', '\nc\n') == 'a\nb\n'
+    }
+
+    def "output stops before the byte budget"() {
+        expect:
+        limit(-1, 4, 'ab', '\u00e9\u00e9') == 'ab\u00e9'
+    }
+
+    def "escape sequences are not split and colors are reset"() {
+        given:
+        String red = '\u001B[31m'
+
+        expect:
+        limit(-1, red.length() + 1 + Preview.LimitedOutput.RESET_BYTES, red + 'ab' + Main.Ansi.reset) ==
+                red + 'a' + Main.Ansi.reset
+        limit(-1, 2, 'a' + red + 'b') == 'a'
+    }
+}
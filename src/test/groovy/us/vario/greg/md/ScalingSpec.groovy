@@ -0,0 +1,139 @@
+package us.vario.greg.md
+
+import org.commonmark.node.Node
+import org.commonmark.parser.Parser
+import org.commonmark.renderer.html.HtmlRenderer
+import spock.lang.Shared
+import spock.lang.Requires
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.lang.management.ManagementFactory
+
+/**
+ * Renders synthetic documents at sizes N, 2N and 4N, and checks that time and allocated bytes grow about linearly
+ * with the size of the input. A quadratic step would grow 4 times faster than the input between N and 4N.
+ * <p>
+ * Only rendering is measured: commonmark's own parsing of deeply nested lists is superlinear.
+ * <p>
+ * Allocated bytes are stable, so they gate the build. Times depend on the load of the machine, so they are only
+ * checked with {@code -Dmd.timing=true}.
+ */
+class ScalingSpec extends Specification {
+    static final int RUNS = 7
+    /**
+     * Growth allowed relative to the input size from N to 4N
+     */
+    static final double MAX_TIME_GROWTH = 3
+    static final double MAX_BYTES_GROWTH = 1.5
+
+    @Shared
+    Parser parser = Parser.builder().build()
+    @Shared
+    HtmlRenderer renderer
+
+    def setupSpec() {
+        Main main = new Main()
+        main.@colors = Main.Ansi.compile(Main.DEFAULT_COLORS, Main.Ansi.ColorMode.ANSI256)
+        renderer = main.createRenderer(null, null)
+    }
+
+    @Unroll
+    def "#name renders in linear memory"() {
+        when:
+        Closure<String> generate = PathologicalDocs.all()[name]
+        String small = generate(n)
+        String large = generate(n * 4)
+        //warm up on the largest document, so compiled code is measured
+        measure(large)
+        Measurement first = measure(small)
+        Measurement last = measure(large)
+        double sizeGrowth = large.length() / (double) small.length()
+
+        then:
+        last.bytes / (double) first.bytes / sizeGrowth < MAX_BYTES_GROWTH
+
+        where:
+        name            | n
+        'deepQuotes'    | 4000
+        'deepLists'     | 2000
+        'hugeList'      | 10000
+        'hugeLooseList' | 10000
+        'manyLinks'     | 10000
+        'giantCode'     | 50000
+        'longParagraph' | 10000
+    }
+
+    @Requires({ Boolean.getBoolean('md.timing') })
+    @Unroll
+    def "#name renders in linear time"() {
+        when:
+        Closure<String> generate = PathologicalDocs.all()[name]
+        String small = generate(n)
+        String large = generate(n * 4)
+        //warm up on the largest document, so the first measurement is not of interpreted code
+        measure(large)
+        Measurement first = measure(small)
+        measure(generate(n * 2))
+        Measurement last = measure(large)
+        double sizeGrowth = large.length() / (double) small.length()
+
+        then:
+        last.nanos / (double) first.nanos / sizeGrowth < MAX_TIME_GROWTH
+
+        where:
+        name            | n
+        'deepQuotes'    | 4000
+        'deepLists'     | 2000
+        'hugeList'      | 10000
+        'hugeLooseList' | 10000
+        'manyLinks'     | 10000
+        'giantCode'     | 50000
+        'longParagraph' | 10000
+    }
+
+    /**
+     * Parse the document, and render it a few times after a warmup, on a thread with a large stack for deeply nested
+     * documents
+     *
+     * @return the smallest time and allocation of the runs
+     */
+    Measurement measure(String markdown) {
+        Measurement result = new Measurement(nanos: Long.MAX_VALUE, bytes: Long.MAX_VALUE)
+        Throwable error = null
+        Thread thread = new Thread(null, {
+            try {
+                Node doc = parser.parse(markdown)
+                def threads = (com.sun.management.ThreadMXBean) ManagementFactory.threadMXBean
+                long id = Thread.currentThread().id
+                render(doc)
+                for (int i = 0; i < RUNS; i++) {
+                    //keep collection of earlier garbage out of the timing
+                    System.gc()
+                    long bytes = threads.getThreadAllocatedBytes(id)
+                    long start = System.nanoTime()
+                    render(doc)
+                    result.nanos = Math.min(result.nanos, System.nanoTime() - start)
+                    result.bytes = Math.min(result.bytes, threads.getThreadAllocatedBytes(id) - bytes)
+                }
+            } catch (Throwable e) {
+                error = e
+            }
+        }, 'render', 256L << 20)
+        thread.start()
+        thread.join()
+        if (null != error) {
+            throw error
+        }
+        result
+    }
+
+    void render(Node doc) {
+        renderer.render(doc, new StringBuilder())
+    }
+
+    static class Measurement {
+        long nanos
+        long bytes
+    }
+}
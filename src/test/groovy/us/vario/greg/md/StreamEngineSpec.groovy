@@ -0,0 +1,217 @@
+package us.vario.greg.md
+
+import spock.lang.Requires
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+/**
+ * Compares the peak heap of the stream engine with parsing a document tree and rendering it, and checks that the
+ * stream engine runs in about linear time.
+ * <p>
+ * The peak heap of an engine is the smallest -Xmx, in MB, with which a forked JVM with the serial collector renders a
+ * document, less the -Xmx it needs for an empty document. Output is discarded, so only the engine is measured. The
+ * stream engine holds the source as chars and, for the paragraph being rendered, a few ints per inline token, so a
+ * long paragraph with dense markup peaks at about 2.5 times its source buffer. Deeply nested documents are too small
+ * to measure this way.
+ * <p>
+ * Times depend on the load of the machine, so they are only checked with {@code -Dmd.timing=true}.
+ */
+class StreamEngineSpec extends Specification {
+    static final int RUNS = 5
+    /**
+     * Largest peak heap of the stream engine allowed, relative to the tree
+     */
+    static final double MAX_HEAP_RATIO = 0.5
+    /**
+     * Largest peak heap of the stream engine allowed, relative to its source buffer
+     */
+    static final double MAX_BUFFER_RATIO = 3
+    /**
+     * Time growth allowed relative to the input size from N to 4N
+     */
+    static final double MAX_TIME_GROWTH = 3
+
+    @Shared
+    Map<String, String> colors
+    @Shared
+    File dir
+    /**
+     * -Xmx needed for an empty document
+     */
+    @Shared
+    int baseMb
+
+    def setupSpec() {
+        colors = Main.Ansi.compile(Main.DEFAULT_COLORS, Main.Ansi.ColorMode.ANSI256)
+        dir = File.createTempDir()
+        baseMb = smallestHeap('stream', write('empty', ''), 1, 64)
+    }
+
+    def cleanupSpec() {
+        dir.deleteDir()
+    }
+
+    @Unroll
+    def "#name peaks at a few times its source buffer in the stream engine"() {
+        when:
+        String markdown = PathologicalDocs.all()[name](n)
+        File file = write(name, markdown)
+        double bufferMb = markdown.length() * 2 / (double) (1 << 20)
+        int stream = smallestHeap('stream', file, baseMb, baseMb + (int) (bufferMb * MAX_BUFFER_RATIO) + 2) - baseMb
+
+        then:
+        stream <= bufferMb * MAX_BUFFER_RATIO + 1
+
+        where:
+        name            | n
+        'hugeList'      | 100000
+        'hugeLooseList' | 100000
+        'manyLinks'     | 100000
+        'giantCode'     | 100000
+        'longParagraph' | 100000
+        'unclosedLinks' | 100000
+    }
+
+    @Unroll
+    def "#name needs less heap in the stream engine than in a tree"() {
+        when:
+        File file = write(name, PathologicalDocs.all()[name](n))
+        int stream = smallestHeap('stream', file, baseMb, 1024) - baseMb
+
+        then:
+        !renders('ast', file, baseMb + (int) (stream / MAX_HEAP_RATIO))
+        renders('ast', file, 1024)
+
+        where:
+        name            | n
+        'hugeList'      | 100000
+        'hugeLooseList' | 100000
+        'manyLinks'     | 100000
+        'longParagraph' | 100000
+    }
+
+    @Requires({ Boolean.getBoolean('md.timing') })
+    @Unroll
+    def "#name streams in linear time"() {
+        when:
+        Closure<String> generate = PathologicalDocs.all()[name]
+        String small = generate(n)
+        String large = generate(n * 4)
+        //warm up on the largest document, so the first measurement is not of interpreted code
+        onLargeStack { fastest(large) }
+        long first = onLargeStack { fastest(small) }
+        long last = onLargeStack { fastest(large) }
+        double sizeGrowth = large.length() / (double) small.length()
+
+        then:
+        last / (double) first / sizeGrowth < MAX_TIME_GROWTH
+
+        where:
+        name            | n
+        'deepQuotes'    | 4000
+        'deepLists'     | 2000
+        'hugeList'      | 10000
+        'manyLinks'     | 10000
+        'giantCode'     | 50000
+        'longParagraph' | 10000
+        'unclosedLinks' | 10000
+    }
+
+    /**
+     * @return the smallest time of rendering with the stream engine a few times
+     */
+    long fastest(String markdown) {
+        long result = Long.MAX_VALUE
+        for (int i = 0; i < RUNS; i++) {
+            System.gc()
+            long start = System.nanoTime()
+            renderStream(markdown)
+            result = Math.min(result, System.nanoTime() - start)
+        }
+        result
+    }
+
+    /**
+     * Render as the stream engine does, from a char buffer of its own
+     */
+    void renderStream(String markdown) {
+        char[] buf = new char[markdown.length() + 1]
+        markdown.getChars(0, markdown.length(), buf, 0)
+        EventRenderer eventRenderer = new EventRenderer(buf, new NullWriter(), colors, [:], false)
+        EventParser eventParser = new EventParser(buf, markdown.length(), eventRenderer)
+        eventParser.parse()
+        eventRenderer.finish()
+    }
+
+    File write(String name, String markdown) {
+        File file = new File(dir, name + '.md')
+        file.text = markdown
+        file
+    }
+
+    /**
+     * Bisect the -Xmx, in MB, that the engine needs for the file
+     *
+     * @param low a heap known or assumed to be too small
+     * @param high a heap to try last, returned if even it is too small
+     */
+    static int smallestHeap(String engine, File file, int low, int high) {
+        while (high - low > 1) {
+            int middle = (low + high).intdiv(2)
+            if (renders(engine, file, middle)) {
+                high = middle
+            } else {
+                low = middle
+            }
+        }
+        high
+    }
+
+    /**
+     * @return true if a forked JVM renders the file with the engine within the heap
+     */
+    static boolean renders(String engine, File file, int heapMb) {
+        String java = new File(System.getProperty('java.home'), 'bin/java').path
+        Process process = new ProcessBuilder(java, '-XX:+UseSerialGC', "-Xmx${heapMb}m",
+                '-cp', System.getProperty('java.class.path'),
+                Main.name, '-C', 'none', '--engine', engine, file.path).start()
+        process.consumeProcessOutput()
+        process.waitFor() == 0
+    }
+
+    /**
+     * Run on a thread with a large stack for deeply nested documents
+     */
+    static <T> T onLargeStack(Closure<T> run) {
+        T result = null
+        Throwable error = null
+        Thread thread = new Thread(null, {
+            try {
+                result = run()
+            } catch (Throwable e) {
+                error = e
+            }
+        }, 'engine', 256L << 20)
+        thread.start()
+        thread.join()
+        if (null != error) {
+            throw error
+        }
+        result
+    }
+
+    static class NullWriter extends Writer {
+        @Override
+        void write(char[] cbuf, int off, int len) {
+        }
+
+        @Override
+        void flush() {
+        }
+
+        @Override
+        void close() {
+        }
+    }
+}